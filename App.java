@@ -1,112 +1,94 @@
 import java.io.*;
-import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
 
 public class App {
-    public static void main(String[] args) throws IOException, ClassNotFoundException{
-
-        //Create an instance of Utility
-        Utility Utility = new Utility();
+    public static void main(String[] args) throws IOException, InterruptedException {
 
         //Define original file directory to loop through
         String ImageDirectory = "Original/";
 
-        // List all files in the directory
-        File directory = new File(ImageDirectory);
-        File[] files = directory.listFiles();
-
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    String imageName = file.getName();
-
-                    //Converting image to pixels
-
-                    ImagetoPixelConverter ImagetoPixelConverter = new ImagetoPixelConverter(ImageDirectory + imageName);
-
-                    //Converting the image to pixels
-
-                    int[][][] pixelData = ImagetoPixelConverter.getPixelData();
-                    int width = ImagetoPixelConverter.getWidth();
-                    int height = ImagetoPixelConverter.getHeight();
-
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            int red = pixelData[x][y][0];
-                            int green = pixelData[x][y][1];
-                            int blue = pixelData[x][y][2];
-                        }
-                    }
-
-                    // Now you have the image data in 'pixelData' that will be taken in by Compress
-
-                    // Define location and name for the compressed file to be created
-                    String compressed_file_name = "Compressed/" + imageName.substring(0, imageName.lastIndexOf('.')) + ".bin";
-
-                    // start compress timer
-                    long compressStartTime = System.currentTimeMillis();
-
-                    //call compress function
-                    Utility.Compress(pixelData, compressed_file_name);
-
-                    //end timer for compress and record the total time passed
-                    long compressEndTime = System.currentTimeMillis();
-                    long compressExecutionTime = compressEndTime - compressStartTime;
-                    System.out.println("Compress Execution Time for "+ imageName + " : " + compressExecutionTime + " milliseconds");
-
-                    //Check the original file size
-                    File originalFile = new File(ImageDirectory + imageName);
-                    long originalFileSize = originalFile.length();
-                    System.out.println("Size of the original file for " + imageName + ": " + originalFileSize + " bytes");
-
-                    // Check size of the compressed file
-                    File compressedFile = new File(compressed_file_name);
-                    long compressedFileSize = compressedFile.length();
-                    System.out.println("Size of the compressed file for " + imageName + ": " + compressedFileSize + " bytes");
-
-                    //Find the Difference
-                    long differenceInFileSize = originalFileSize - compressedFileSize;
-                    System.out.println("Bytes saved from compression of " + imageName + ": " + differenceInFileSize + " bytes");
-
-                    // start decompress timer
-                    long decompressStartTime = System.currentTimeMillis();
-
-                    // call decompress function
-                    int [][][] newPixelData = Utility.Decompress(compressed_file_name);
-
-                    //end timer for decompress and record the total time passed
-                    long decompressEndTime = System.currentTimeMillis();
-                    long decompressExecutionTime = decompressEndTime - decompressStartTime;
-                    System.out.println("Decompress Execution Time for " + imageName + " : " + decompressExecutionTime + " milliseconds");
-
-
-                    //convert back to image for visualisation
-                    PixeltoImageConverter PixeltoImageConverter = new PixeltoImageConverter(newPixelData);
-                    PixeltoImageConverter.saveImage("Decompressed/" + imageName, "png");
-
-                    //Get the two bufferedimages for calculations
-                    BufferedImage originalimage = ImageIO.read(new File(ImageDirectory + imageName));
-                    BufferedImage decompressedimage = ImageIO.read(new File("Decompressed/" + imageName));
-
-                    //calculate MAE
-                    double MAE = MAECalculator.calculateMAE(originalimage, decompressedimage);
-                    System.out.println("Mean Absolute Error of :" + imageName + " is " + MAE) ;
-
-                    //calculate MSE
-                    double MSE = MSECalculator.calculateMSE(originalimage, decompressedimage);
-                    System.out.println("Mean Squared Error of :" + imageName + " is " + MSE) ;
-
-                    //calculate PSNR
-                    double PSNR = PSNRCalculator.calculatePSNR(originalimage, decompressedimage);
-                    System.out.println("PSNR of :" + imageName + " is " + PSNR);
-
-                }
+        // Usage: java App [concurrency] [queueCapacity] [--no-png] [--from-disk] [--hybrid] [--progressive]
+        //                [--target-size=BYTES | --target-psnr=DB] [--cache=DIR] [--cache-limit=BYTES]
+        //                [--no-buffer-reuse] [--metrics-report=FILE]
+        //   --no-png       do not save the decompressed images
+        //   --from-disk    measure quality on the PNG read back from Decompressed/
+        //   --hybrid       write the entropy-coded HybridQuadTreeFormat
+        //   --progressive  write ProgressiveQuadTreeFormat, readable level by level
+        //   --target-size  pick the variance threshold per image to fit in BYTES
+        //   --target-psnr  pick the variance threshold per image to reach DB
+        //   --cache        reuse compressed files stored in DIR for unchanged images
+        //   --cache-limit  evict the least recently used entries above BYTES (default 256 MB)
+        //   --no-buffer-reuse  allocate every image's buffers and tables afresh
+        //   --metrics-report   instrument the codec, publish it over JMX while running and
+        //                      save per-stage latencies to FILE (.csv, otherwise JSON)
+        List<String> numbers = new ArrayList<>();
+        boolean writeImages = true;
+        boolean fromDisk = false;
+        boolean hybrid = false;
+        boolean progressive = false;
+        boolean reuseBuffers = true;
+        long targetSize = 0;
+        double targetPSNR = 0;
+        String cacheDirectory = null;
+        long cacheLimit = CompressionCache.DEFAULT_MAX_BYTES;
+        String metricsReport = null;
+        for (String arg : args) {
+            if (arg.equals("--no-png")) {
+                writeImages = false;
+            } else if (arg.equals("--from-disk")) {
+                fromDisk = true;
+            } else if (arg.equals("--hybrid")) {
+                hybrid = true;
+            } else if (arg.equals("--progressive")) {
+                progressive = true;
+            } else if (arg.startsWith("--target-size=")) {
+                targetSize = Long.parseLong(arg.substring("--target-size=".length()));
+            } else if (arg.startsWith("--target-psnr=")) {
+                targetPSNR = Double.parseDouble(arg.substring("--target-psnr=".length()));
+            } else if (arg.equals("--no-buffer-reuse")) {
+                reuseBuffers = false;
+            } else if (arg.startsWith("--metrics-report=")) {
+                metricsReport = arg.substring("--metrics-report=".length());
+            } else if (arg.startsWith("--cache=")) {
+                cacheDirectory = arg.substring("--cache=".length());
+            } else if (arg.startsWith("--cache-limit=")) {
+                cacheLimit = Long.parseLong(arg.substring("--cache-limit=".length()));
+            } else {
+                numbers.add(arg);
+            }
+        }
+        int concurrency = numbers.size() > 0 ? Integer.parseInt(numbers.get(0)) : Runtime.getRuntime().availableProcessors();
+        int queueCapacity = numbers.size() > 1 ? Integer.parseInt(numbers.get(1)) : 2 * concurrency;
+
+        // Decode, compress, write, decompress and measure every file concurrently
+        BatchPipeline pipeline = new BatchPipeline(ImageDirectory, "Compressed/", "Decompressed/", concurrency,
+                queueCapacity);
+        pipeline.setWriteDecompressedImages(writeImages);
+        pipeline.setEvaluateFromDisk(fromDisk);
+        pipeline.setUseEntropyCoding(hybrid);
+        pipeline.setUseProgressiveFormat(progressive);
+        pipeline.setReuseBuffers(reuseBuffers);
+        if (targetSize > 0) {
+            pipeline.setTargetSize(targetSize);
+        } else if (targetPSNR > 0) {
+            pipeline.setTargetPSNR(targetPSNR);
+        }
+        if (cacheDirectory != null) {
+            pipeline.setCompressionCache(new CompressionCache(cacheDirectory, cacheLimit));
+        }
+        if (metricsReport != null) {
+            CodecMetrics metrics = new CodecMetrics();
+            try {
+                metrics.register();
+            } catch (JMException e) {
+                System.err.println("Codec metrics not published over JMX: " + e);
             }
+            pipeline.setCodecMetrics(metrics);
+            pipeline.setMetricsReport(metricsReport);
         }
+        pipeline.run();
 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,442 @@
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import javax.imageio.ImageIO;
+
+// Runs App's per-image work as five concurrent stages connected by bounded queues:
+//
+//   decode -> compress -> write -> decompress -> metrics
+//
+// Each stage has its own pool of 'concurrency' workers. A full queue blocks the stage in
+// front of it, so at most (stages * concurrency + queues * queueCapacity) images are in
+// memory no matter how many files the directory holds.
+public class BatchPipeline {
+
+    private static final ImageJob END = new ImageJob(null); // end-of-input marker
+
+    private final String imageDirectory;
+    private final String compressedDirectory;
+    private final String decompressedDirectory;
+    private final int concurrency;
+    private final int queueCapacity;
+
+    // One Utility per worker thread; it keeps per-call state such as the tree footprint
+    private final ThreadLocal<Utility> utilities = ThreadLocal.withInitial(this::newUtility);
+
+    // One CodecContext per worker thread, when buffers are reused. The metrics stage hands
+    // each image buffer back to the context of the thread that allocated it.
+    private final ThreadLocal<CodecContext> contexts = ThreadLocal.withInitial(this::newContext);
+    private final List<CodecContext> allContexts = new CopyOnWriteArrayList<>();
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    // Save the decompressed PNG for visual inspection, off the measured path
+    private boolean writeDecompressedImages = true;
+
+    // Old behaviour: compare the PNG read back from disk instead of the in-memory buffers
+    private boolean evaluateFromDisk = false;
+
+    // Write HybridQuadTreeFormat instead of the plain compact format
+    private boolean useEntropyCoding = false;
+
+    // Write ProgressiveQuadTreeFormat, which a viewer can show level by level
+    private boolean useProgressiveFormat = false;
+
+    // Rate control targets handed to every Utility; 0 is off
+    private long targetSize = 0;
+    private double targetPSNR = 0;
+
+    // Recycle pixel buffers, summed-area tables and node arrays between images
+    private boolean reuseBuffers = true;
+
+    // Codec instrumentation shared by every worker, and where to save it after the batch
+    private CodecMetrics codecMetrics;
+    private String metricsReport;
+
+    // Shared by every Utility; null compresses every image
+    private CompressionCache compressionCache;
+
+    private ThreadPoolExecutor imageWriter;
+
+    public BatchPipeline(String imageDirectory, String compressedDirectory, String decompressedDirectory,
+            int concurrency, int queueCapacity) {
+        if (concurrency < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("concurrency and queueCapacity must be positive");
+        }
+        this.imageDirectory = imageDirectory;
+        this.compressedDirectory = compressedDirectory;
+        this.decompressedDirectory = decompressedDirectory;
+        this.concurrency = concurrency;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setWriteDecompressedImages(boolean writeDecompressedImages) {
+        this.writeDecompressedImages = writeDecompressedImages;
+    }
+
+    public void setEvaluateFromDisk(boolean evaluateFromDisk) {
+        this.evaluateFromDisk = evaluateFromDisk;
+    }
+
+    public void setUseEntropyCoding(boolean useEntropyCoding) {
+        this.useEntropyCoding = useEntropyCoding;
+    }
+
+    public void setUseProgressiveFormat(boolean useProgressiveFormat) {
+        this.useProgressiveFormat = useProgressiveFormat;
+    }
+
+    public void setTargetSize(long targetSize) {
+        this.targetSize = targetSize;
+        this.targetPSNR = 0;
+    }
+
+    public void setTargetPSNR(double targetPSNR) {
+        this.targetPSNR = targetPSNR;
+        this.targetSize = 0;
+    }
+
+    public void setReuseBuffers(boolean reuseBuffers) {
+        this.reuseBuffers = reuseBuffers;
+    }
+
+    public void setCodecMetrics(CodecMetrics codecMetrics) {
+        this.codecMetrics = codecMetrics;
+    }
+
+    // CSV or JSON by extension, written at the end of run(); needs setCodecMetrics
+    public void setMetricsReport(String metricsReport) {
+        this.metricsReport = metricsReport;
+    }
+
+    public void setCompressionCache(CompressionCache compressionCache) {
+        this.compressionCache = compressionCache;
+    }
+
+    private Utility newUtility() {
+        Utility utility = new Utility();
+        utility.setCompressionCache(compressionCache);
+        utility.setCodecContext(contexts.get());
+        utility.setMetrics(codecMetrics);
+        utility.setUseEntropyCoding(useEntropyCoding);
+        utility.setUseProgressiveFormat(useProgressiveFormat);
+        if (targetSize > 0) {
+            utility.setTargetSize(targetSize);
+        } else if (targetPSNR > 0) {
+            utility.setTargetPSNR(targetPSNR);
+        }
+        return utility;
+    }
+
+    private CodecContext newContext() {
+        if (!reuseBuffers) {
+            return null;
+        }
+        CodecContext context = new CodecContext();
+        allContexts.add(context);
+        return context;
+    }
+
+    private static void recycle(CodecContext context, PixelBuffer pixels) {
+        if (context != null) {
+            context.recycle(pixels);
+        }
+    }
+
+    public void run() throws IOException, InterruptedException {
+        File[] files = new File(imageDirectory).listFiles();
+        if (files == null) {
+            throw new FileNotFoundException("Image directory not found: " + imageDirectory);
+        }
+        new File(compressedDirectory).mkdirs();
+        new File(decompressedDirectory).mkdirs();
+
+        stages.clear();
+        stages.add(new Stage("decode", this::decode));
+        stages.add(new Stage("compress", this::compress));
+        stages.add(new Stage("write", this::write));
+        stages.add(new Stage("decompress", this::decompress));
+        stages.add(new Stage("metrics", this::metrics));
+        for (int i = 0; i < stages.size() - 1; i++) {
+            stages.get(i).next = stages.get(i + 1);
+        }
+
+        // A full write queue makes the metrics worker save the image itself, which keeps
+        // the number of buffers waiting to be written bounded
+        imageWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long start = System.nanoTime();
+        for (Stage stage : stages) {
+            stage.start();
+        }
+
+        Stage first = stages.get(0);
+        for (File file : files) {
+            if (file.isFile()) {
+                first.input.put(new ImageJob(file));
+            }
+        }
+        first.input.put(END);
+
+        for (Stage stage : stages) {
+            stage.awaitTermination();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        imageWriter.shutdown();
+        imageWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        printSummary(elapsed);
+        if (codecMetrics != null && metricsReport != null) {
+            codecMetrics.writeReport(metricsReport);
+            System.out.println("Codec metrics written to " + metricsReport);
+        }
+    }
+
+    private long decode(ImageJob job) throws IOException {
+        job.originalFileSize = job.file.length();
+        CodecMetrics.Sample load = CodecMetrics.start(codecMetrics, CodecMetrics.Stage.LOAD);
+        BufferedImage image = ImageIO.read(job.file);
+        if (image == null) {
+            throw new IllegalStateException("Could not read image " + job.name);
+        }
+        job.originalContext = contexts.get();
+        job.original = ImagetoPixelConverter.toPixelBuffer(image, job.originalContext);
+        load.stop();
+        return job.originalFileSize;
+    }
+
+    private long compress(ImageJob job) throws IOException {
+        Utility utility = utilities.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long start = System.currentTimeMillis();
+        utility.Compress(job.original, out);
+        job.compressMillis = System.currentTimeMillis() - start;
+
+        job.compressed = out.toByteArray();
+        job.treeHeapBytes = utility.getLastTreeHeapBytes();
+        job.varianceThreshold = utility.getLastVarianceThreshold();
+        return rawBytes(job.original);
+    }
+
+    private long write(ImageJob job) throws IOException {
+        job.compressedFile = new File(compressedDirectory, baseName(job.name) + ".bin");
+        Files.write(job.compressedFile.toPath(), job.compressed);
+        long written = job.compressed.length;
+        job.compressed = null; // the file is the source of truth from here on
+        return written;
+    }
+
+    private long decompress(ImageJob job) throws IOException, ClassNotFoundException {
+        long start = System.currentTimeMillis();
+        job.decompressed = utilities.get().DecompressToBuffer(job.compressedFile.getPath());
+        job.decompressedContext = contexts.get();
+        job.decompressMillis = System.currentTimeMillis() - start;
+        return job.compressedFile.length();
+    }
+
+    private long metrics(ImageJob job) throws IOException {
+        File decompressedFile = new File(decompressedDirectory, job.name);
+
+        if (evaluateFromDisk) {
+            // Write the PNG and read both images back, as App originally did
+            saveImage(job.decompressed, decompressedFile);
+            recycle(job.decompressedContext, job.decompressed);
+            BufferedImage originalImage = ImageIO.read(job.file);
+            BufferedImage decompressedImage = ImageIO.read(decompressedFile);
+            CodecMetrics.Sample measure = CodecMetrics.start(codecMetrics, CodecMetrics.Stage.METRICS);
+            job.metrics = QualityMetrics.compute(originalImage, decompressedImage);
+            measure.stop();
+        } else {
+            // The decoded original and the decompressed buffer are already in memory
+            CodecMetrics.Sample measure = CodecMetrics.start(codecMetrics, CodecMetrics.Stage.METRICS);
+            job.metrics = QualityMetrics.compute(job.original, job.decompressed);
+            measure.stop();
+
+            PixelBuffer decompressed = job.decompressed;
+            CodecContext context = job.decompressedContext;
+            if (writeDecompressedImages) {
+                imageWriter.execute(() -> {
+                    saveImage(decompressed, decompressedFile);
+                    recycle(context, decompressed);
+                });
+            } else {
+                recycle(context, decompressed);
+            }
+        }
+
+        long bytes = rawBytes(job.original);
+        recycle(job.originalContext, job.original);
+        job.original = null;
+        job.decompressed = null;
+        printResult(job);
+        return bytes;
+    }
+
+    private void saveImage(PixelBuffer pixels, File file) {
+        CodecMetrics.Sample save = CodecMetrics.start(codecMetrics, CodecMetrics.Stage.SAVE);
+        new PixeltoImageConverter(pixels).saveImage(file.getPath(), "png");
+        save.stop();
+    }
+
+    private synchronized void printResult(ImageJob job) {
+        String imageName = job.name;
+        long compressedFileSize = job.compressedFile.length();
+        System.out.println("Compress Execution Time for " + imageName + " : " + job.compressMillis + " milliseconds");
+        System.out.println("QuadTree heap footprint for " + imageName + ": " + job.treeHeapBytes + " bytes");
+        if ((targetSize > 0 || targetPSNR > 0) && !Double.isNaN(job.varianceThreshold)) {
+            System.out.println("Variance threshold chosen for " + imageName + ": " + job.varianceThreshold);
+        }
+        System.out.println("Size of the original file for " + imageName + ": " + job.originalFileSize + " bytes");
+        System.out.println("Size of the compressed file for " + imageName + ": " + compressedFileSize + " bytes");
+        System.out.println("Bytes saved from compression of " + imageName + ": "
+                + (job.originalFileSize - compressedFileSize) + " bytes");
+        System.out.println("Decompress Execution Time for " + imageName + " : " + job.decompressMillis + " milliseconds");
+        System.out.println("Mean Absolute Error of :" + imageName + " is " + job.metrics.getMAE());
+        System.out.println("Mean Squared Error of :" + imageName + " is " + job.metrics.getMSE());
+        System.out.println("PSNR of :" + imageName + " is " + job.metrics.getPSNR());
+        System.out.printf("PSNR per channel of :%s is R %.2f, G %.2f, B %.2f, max error %d%n", imageName,
+                job.metrics.getPSNR(0), job.metrics.getPSNR(1), job.metrics.getPSNR(2), job.metrics.getMaxError());
+    }
+
+    private void printSummary(long elapsedNanos) {
+        System.out.println();
+        System.out.printf("Batch of %d images in %.1f ms (concurrency %d, queue capacity %d, %d failed)%n",
+                stages.get(stages.size() - 1).images.get(), elapsedNanos / 1e6, concurrency, queueCapacity,
+                failures.get());
+        System.out.printf("%-12s %8s %12s %12s %12s%n", "stage", "images", "busy ms", "images/sec", "MB/sec");
+        for (Stage stage : stages) {
+            double activeSeconds = Math.max(stage.lastEnd.get() - stage.firstStart.get(), 1) / 1e9;
+            System.out.printf("%-12s %8d %12.1f %12.1f %12.2f%n", stage.name, stage.images.get(),
+                    stage.busyNanos.get() / 1e6, stage.images.get() / activeSeconds,
+                    stage.bytes.get() / 1e6 / activeSeconds);
+        }
+        if (!allContexts.isEmpty()) {
+            long reused = 0, allocated = 0;
+            for (CodecContext context : allContexts) {
+                reused += context.getReusedCount();
+                allocated += context.getAllocatedCount();
+            }
+            System.out.printf("Buffer reuse: %d arrays reused, %d allocated, in %d contexts%n", reused, allocated,
+                    allContexts.size());
+        }
+        if (compressionCache != null) {
+            System.out.printf("Compression cache: %d hits, %d misses, %d evictions, %d bytes served from cache, "
+                    + "%d entries using %d bytes%n", compressionCache.getHits(), compressionCache.getMisses(),
+                    compressionCache.getEvictions(), compressionCache.getBytesServed(),
+                    compressionCache.getEntryCount(), compressionCache.getTotalBytes());
+        }
+    }
+
+    private static long rawBytes(PixelBuffer pixels) {
+        return 3L * pixels.getWidth() * pixels.getHeight();
+    }
+
+    private static String baseName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? fileName : fileName.substring(0, dot);
+    }
+
+    // Returns the number of bytes the stage consumed for this image
+    private interface StageWork {
+        long process(ImageJob job) throws Exception;
+    }
+
+    private class Stage {
+        final String name;
+        final StageWork work;
+        final BlockingQueue<ImageJob> input = new ArrayBlockingQueue<>(queueCapacity);
+        final ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        final AtomicInteger running = new AtomicInteger(concurrency);
+        Stage next;
+
+        final AtomicLong images = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final LongAccumulator firstStart = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        final LongAccumulator lastEnd = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+        Stage(String name, StageWork work) {
+            this.name = name;
+            this.work = work;
+        }
+
+        void start() {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(this::workLoop);
+            }
+            workers.shutdown();
+        }
+
+        void awaitTermination() throws InterruptedException {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        private void workLoop() {
+            try {
+                while (true) {
+                    ImageJob job = input.take();
+                    if (job == END) {
+                        input.put(END); // let the other workers of this stage see it too
+                        if (running.decrementAndGet() == 0 && next != null) {
+                            next.input.put(END);
+                        }
+                        return;
+                    }
+
+                    long start = System.nanoTime();
+                    try {
+                        bytes.addAndGet(work.process(job));
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        System.err.println(name + " failed for " + job.name + ": " + e);
+                        continue;
+                    }
+                    long end = System.nanoTime();
+                    firstStart.accumulate(start);
+                    lastEnd.accumulate(end);
+                    busyNanos.addAndGet(end - start);
+                    images.incrementAndGet();
+
+                    if (next != null) {
+                        next.input.put(job); // blocks while the next stage is behind
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // One image travelling through the stages
+    private static class ImageJob {
+        final File file;
+        final String name;
+        long originalFileSize;
+        PixelBuffer original;
+        CodecContext originalContext;
+        byte[] compressed;
+        File compressedFile;
+        PixelBuffer decompressed;
+        CodecContext decompressedContext;
+        long treeHeapBytes;
+        double varianceThreshold;
+        long compressMillis;
+        long decompressMillis;
+        QualityMetrics metrics;
+
+        ImageJob(File file) {
+            this.file = file;
+            this.name = file == null ? null : file.getName();
+        }
+    }
+}
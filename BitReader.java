@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Reads bits most-significant first from a ByteBuffer, from 'offset' up to its limit,
+// without copying it. Up to 64 bits are cached at a time so short codes can be peeked
+// and consumed without touching the buffer. Reading past the end yields zero bits.
+public class BitReader {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int limit;
+    private final boolean littleEndian;
+    private int nextByte;
+    private long cache; // left-aligned: the next bit is bit 63
+    private int cachedBits;
+
+    public BitReader(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.limit = buffer.limit();
+        this.littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        this.nextByte = offset;
+    }
+
+    public int readBit() {
+        if (cachedBits == 0) {
+            refill();
+        }
+        int bit = (int) (cache >>> 63);
+        cache <<= 1;
+        cachedBits--;
+        return bit;
+    }
+
+    public int readBits(int count) {
+        int value = peekBits(count);
+        skipBits(count);
+        return value;
+    }
+
+    // The next 'count' bits (1..32) without consuming them
+    public int peekBits(int count) {
+        if (cachedBits < count) {
+            refill();
+        }
+        return (int) (cache >>> (64 - count));
+    }
+
+    public void skipBits(int count) {
+        if (cachedBits < count) {
+            refill();
+        }
+        cache <<= count;
+        cachedBits -= count;
+    }
+
+    // Moves to 'bitPosition' bits past the offset, in either direction
+    public void seek(long bitPosition) {
+        nextByte = offset + (int) (bitPosition >>> 3);
+        cache = 0;
+        cachedBits = 0;
+        skipBits((int) (bitPosition & 7));
+    }
+
+    public long getBitPosition() {
+        return 8L * (nextByte - offset) - cachedBits;
+    }
+
+    private void refill() {
+        if (nextByte + 8 <= limit) {
+            // Whole bytes that fit, from one big-endian read. The bits of the partly taken
+            // byte below them are the right ones already, so the next refill ORs in the same.
+            long word = buffer.getLong(nextByte);
+            if (littleEndian) {
+                word = Long.reverseBytes(word);
+            }
+            cache |= word >>> cachedBits;
+            int bytes = (64 - cachedBits) >>> 3;
+            nextByte += bytes;
+            cachedBits += bytes << 3;
+            return;
+        }
+        while (cachedBits <= 56) {
+            long value = nextByte < limit ? buffer.get(nextByte) & 0xFF : 0;
+            nextByte++;
+            cache |= value << (56 - cachedBits);
+            cachedBits += 8;
+        }
+    }
+}
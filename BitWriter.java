@@ -0,0 +1,71 @@
+import java.util.Arrays;
+
+// Packs bits most-significant first into a growable byte array. Bits collect in a 64-bit
+// accumulator and are flushed a whole byte at a time.
+public class BitWriter {
+
+    private byte[] buffer;
+    private int byteLength; // complete bytes in buffer
+    private long accumulator; // pending bits, right-aligned
+    private int pendingBits; // always < 8 between calls
+
+    public BitWriter() {
+        this(64);
+    }
+
+    public BitWriter(int initialBytes) {
+        this.buffer = new byte[Math.max(initialBytes, 1)];
+    }
+
+    public void writeBit(int bit) {
+        writeBits(bit & 1, 1);
+    }
+
+    // Writes the lowest 'count' bits of value, highest of them first (count <= 32)
+    public void writeBits(int value, int count) {
+        if (count == 0) {
+            return;
+        }
+        accumulator = (accumulator << count) | (value & (0xFFFFFFFFL >>> (32 - count)));
+        pendingBits += count;
+
+        if (pendingBits >= 8) {
+            ensureCapacity(byteLength + 5);
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                buffer[byteLength++] = (byte) (accumulator >>> pendingBits);
+            }
+        }
+    }
+
+    // Appends the next 'count' bits of the reader
+    public void copyBits(BitReader in, long count) {
+        for (; count >= 32; count -= 32) {
+            writeBits(in.readBits(32), 32);
+        }
+        writeBits(in.readBits((int) count), (int) count);
+    }
+
+    public long getBitLength() {
+        return 8L * byteLength + pendingBits;
+    }
+
+    public int getByteLength() {
+        return byteLength + (pendingBits > 0 ? 1 : 0);
+    }
+
+    // The bits written so far, zero-padded to a whole byte
+    public byte[] toByteArray() {
+        byte[] bytes = Arrays.copyOf(buffer, getByteLength());
+        if (pendingBits > 0) {
+            bytes[byteLength] = (byte) (accumulator << (8 - pendingBits));
+        }
+        return bytes;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(bytes, buffer.length << 1));
+        }
+    }
+}
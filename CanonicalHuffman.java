@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+// Canonical Huffman code over the symbols 0 .. lengths.length - 1, defined entirely by the
+// code length of each symbol (0 = symbol unused). Codes of the same length are consecutive
+// integers in symbol order, so a file only needs to carry the lengths.
+//
+// Decoding peeks LOOKUP_BITS bits and resolves every code up to that length with a single
+// table lookup; longer codes fall back to a per-length search of the canonical ranges.
+public class CanonicalHuffman {
+
+    public static final int MAX_CODE_LENGTH = 24;
+
+    private static final int LOOKUP_BITS = 11;
+
+    private final int[] lengths;
+    private final int[] codes;
+    private final int maxLength;
+
+    // lookup[peeked bits] = symbol << 8 | length, or 0 when the code is longer than LOOKUP_BITS
+    private final int[] lookup;
+    private final int lookupBits;
+
+    // For the long-code fallback: codes of length L are firstCode[L] .. firstCode[L] + count[L] - 1,
+    // and their symbols are sortedSymbols[firstIndex[L] ...]
+    private final int[] firstCode = new int[MAX_CODE_LENGTH + 2];
+    private final int[] firstIndex = new int[MAX_CODE_LENGTH + 2];
+    private final int[] count = new int[MAX_CODE_LENGTH + 2];
+    private final int[] sortedSymbols;
+
+    public CanonicalHuffman(int[] lengths) {
+        this.lengths = lengths.clone();
+        this.codes = new int[lengths.length];
+
+        int max = 0;
+        int used = 0;
+        for (int length : lengths) {
+            if (length < 0 || length > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Invalid code length " + length);
+            }
+            if (length > 0) {
+                count[length]++;
+                used++;
+                max = Math.max(max, length);
+            }
+        }
+        this.maxLength = max;
+
+        // Assign codes in (length, symbol) order
+        int code = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + count[length - 1]) << 1;
+            if (code + count[length] > 1 << length) {
+                // More codes of this length than there are bit patterns left for them
+                throw new IllegalArgumentException("Over-subscribed code lengths");
+            }
+            firstCode[length] = code;
+            firstIndex[length] = index;
+            index += count[length];
+        }
+        sortedSymbols = new int[used];
+        int[] next = Arrays.copyOf(firstCode, firstCode.length);
+        int[] position = Arrays.copyOf(firstIndex, firstIndex.length);
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int length = lengths[symbol];
+            if (length > 0) {
+                codes[symbol] = next[length]++;
+                sortedSymbols[position[length]++] = symbol;
+            }
+        }
+
+        lookupBits = Math.max(1, Math.min(LOOKUP_BITS, maxLength));
+        lookup = new int[1 << lookupBits];
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int length = lengths[symbol];
+            if (length > 0 && length <= lookupBits) {
+                int shift = lookupBits - length;
+                int start = codes[symbol] << shift;
+                Arrays.fill(lookup, start, start + (1 << shift), (symbol << 8) | length);
+            }
+        }
+    }
+
+    public void encode(int symbol, BitWriter out) {
+        out.writeBits(codes[symbol], lengths[symbol]);
+    }
+
+    public int decode(BitReader in) {
+        int entry = lookup[in.peekBits(lookupBits)];
+        if (entry != 0) {
+            in.skipBits(entry & 0xFF);
+            return entry >>> 8;
+        }
+
+        for (int length = lookupBits + 1; length <= maxLength; length++) {
+            int offset = in.peekBits(length) - firstCode[length];
+            if (offset >= 0 && offset < count[length]) {
+                in.skipBits(length);
+                return sortedSymbols[firstIndex[length] + offset];
+            }
+        }
+        throw new IllegalArgumentException("Invalid Huffman code");
+    }
+
+    public int[] getLengths() {
+        return lengths.clone();
+    }
+
+    public int getLength(int symbol) {
+        return lengths[symbol];
+    }
+
+    // Huffman code lengths for the given symbol frequencies, capped at MAX_CODE_LENGTH.
+    // Works on flat arrays: leaves are sorted by frequency once, and since merged nodes are
+    // created in non-decreasing weight order, the two smallest are always at the head of
+    // either the leaf list or the merged-node list (the two-queue method).
+    public static int[] codeLengths(int[] frequencies) {
+        int[] lengths = new int[frequencies.length];
+
+        long[] sorted = new long[frequencies.length]; // frequency << 32 | symbol
+        int n = 0;
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] > 0) {
+                sorted[n++] = ((long) frequencies[symbol] << 32) | symbol;
+            }
+        }
+        if (n == 0) {
+            return lengths;
+        }
+        if (n == 1) {
+            lengths[(int) sorted[0]] = 1; // a lone symbol still needs one bit
+            return lengths;
+        }
+        Arrays.sort(sorted, 0, n);
+
+        // Nodes 0 .. n-1 are the leaves in frequency order, n .. 2n-2 the merged nodes
+        long[] weight = new long[2 * n - 1];
+        int[] parent = new int[2 * n - 1];
+        for (int i = 0; i < n; i++) {
+            weight[i] = sorted[i] >>> 32;
+        }
+        int nextLeaf = 0;
+        int nextMerged = n;
+        for (int node = n; node < 2 * n - 1; node++) {
+            int first = nextLeaf < n && (nextMerged >= node || weight[nextLeaf] <= weight[nextMerged])
+                    ? nextLeaf++ : nextMerged++;
+            int second = nextLeaf < n && (nextMerged >= node || weight[nextLeaf] <= weight[nextMerged])
+                    ? nextLeaf++ : nextMerged++;
+            weight[node] = weight[first] + weight[second];
+            parent[first] = node;
+            parent[second] = node;
+        }
+
+        // Parents always have higher indices, so depths resolve from the root down
+        int[] depth = new int[2 * n - 1];
+        for (int node = 2 * n - 3; node >= 0; node--) {
+            depth[node] = depth[parent[node]] + 1;
+        }
+        for (int i = 0; i < n; i++) {
+            lengths[(int) sorted[i]] = depth[i];
+        }
+        return limitLengths(lengths, MAX_CODE_LENGTH);
+    }
+
+    // Shortens codes longer than maxLength while keeping a valid prefix code (the JPEG
+    // Annex K.3 adjustment). Symbols that had longer codes keep longer or equal codes.
+    public static int[] limitLengths(int[] lengths, int maxLength) {
+        int longest = 0;
+        for (int length : lengths) {
+            longest = Math.max(longest, length);
+        }
+        if (longest <= maxLength) {
+            return lengths.clone();
+        }
+
+        int[] counts = new int[longest + 1];
+        for (int length : lengths) {
+            if (length > 0) {
+                counts[length]++;
+            }
+        }
+        for (int i = longest; i > maxLength; i--) {
+            while (counts[i] > 0) {
+                int j = i - 2;
+                while (counts[j] == 0) {
+                    j--;
+                }
+                counts[i] -= 2;
+                counts[i - 1]++;
+                counts[j + 1] += 2;
+                counts[j]--;
+            }
+        }
+
+        // Hand the new lengths out again, shortest first, in the old (length, symbol) order
+        long[] order = new long[lengths.length]; // old length << 32 | symbol
+        int used = 0;
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            if (lengths[symbol] > 0) {
+                order[used++] = ((long) lengths[symbol] << 32) | symbol;
+            }
+        }
+        Arrays.sort(order, 0, used);
+
+        int[] limited = new int[lengths.length];
+        int length = 1;
+        for (int i = 0; i < used; i++) {
+            while (counts[length] == 0) {
+                length++;
+            }
+            limited[(int) order[i]] = length;
+            counts[length]--;
+        }
+        return limited;
+    }
+}
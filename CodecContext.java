@@ -0,0 +1,138 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Recycles the large arrays a Compress or Decompress call needs: pixel buffers, the
+// summed-area tables and FlatQuadTree's node arrays. Without it every image of a batch
+// allocates and drops them again, tens of megabytes per image for the tables alone.
+//
+// Arrays are pooled by size class. A request is rounded up to the next class, which is at
+// most a quarter larger, so images of similar size share arrays. Borrowed arrays keep the
+// contents they were given back with; callers overwrite what they read. Pixel buffers are
+// the exception: they are cleared, so pixels a decoder does not reach, such as those of a
+// truncated or corrupt stream, come out black instead of from an earlier image. Arrays shorter
+// than MIN_POOLED_LENGTH are neither pooled nor rounded.
+//
+// A context is meant to belong to one worker thread. Its methods are synchronized only so
+// that a buffer handed on to another thread, such as the next stage of BatchPipeline, can
+// be given back to the context it came from.
+public class CodecContext {
+
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 128L << 20;
+
+    static final int MIN_POOLED_LENGTH = 1024;
+
+    // A summed-area table borrows six arrays of one class at once
+    private static final int MAX_PER_CLASS = 8;
+
+    private final long maxRetainedBytes;
+    private long retainedBytes;
+
+    private final Map<Integer, ArrayDeque<int[]>> intPools = new HashMap<>();
+    private final Map<Integer, ArrayDeque<long[]>> longPools = new HashMap<>();
+
+    private long reused;
+    private long allocated;
+
+    public CodecContext(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    public CodecContext() {
+        this(DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    // Smallest class that holds 'length': the top three bits of length - 1, rounded up
+    static int classLength(int length) {
+        if (length < MIN_POOLED_LENGTH) {
+            return length;
+        }
+        int step = Integer.highestOneBit(length - 1) >>> 2;
+        int rounded = (length + step - 1) & -step;
+        return rounded > 0 ? rounded : length;
+    }
+
+    public int[] ints(int length) {
+        return ints(length, false);
+    }
+
+    // clear: zero the first 'length' ints of a reused array; new arrays are zero already
+    private synchronized int[] ints(int length, boolean clear) {
+        int capacity = classLength(length);
+        ArrayDeque<int[]> pool = intPools.get(capacity);
+        if (pool != null && !pool.isEmpty()) {
+            int[] array = pool.pop();
+            retainedBytes -= 4L * capacity;
+            reused++;
+            if (clear) {
+                Arrays.fill(array, 0, length, 0);
+            }
+            return array;
+        }
+        allocated++;
+        return new int[capacity];
+    }
+
+    public synchronized long[] longs(int length) {
+        int capacity = classLength(length);
+        ArrayDeque<long[]> pool = longPools.get(capacity);
+        if (pool != null && !pool.isEmpty()) {
+            long[] array = pool.pop();
+            retainedBytes -= 8L * capacity;
+            reused++;
+            return array;
+        }
+        allocated++;
+        return new long[capacity];
+    }
+
+    // The array must not be used after this
+    public synchronized void recycle(int[] array) {
+        keep(intPools, array, array.length, 4L * array.length);
+    }
+
+    public synchronized void recycle(long[] array) {
+        keep(longPools, array, array.length, 8L * array.length);
+    }
+
+    private <T> void keep(Map<Integer, ArrayDeque<T>> pools, T array, int length, long bytes) {
+        if (length < MIN_POOLED_LENGTH || classLength(length) != length
+                || retainedBytes + bytes > maxRetainedBytes) {
+            return; // not one of ours, or the pool is full; the GC takes it
+        }
+        ArrayDeque<T> pool = pools.computeIfAbsent(length, key -> new ArrayDeque<>());
+        if (pool.size() < MAX_PER_CLASS) {
+            pool.push(array);
+            retainedBytes += bytes;
+        }
+    }
+
+    // A width x height buffer on a pooled array, all black like a new one
+    public PixelBuffer pixelBuffer(int width, int height) {
+        return new PixelBuffer(width, height, ints(width * height, true));
+    }
+
+    public void recycle(PixelBuffer pixels) {
+        recycle(pixels.getData());
+    }
+
+    // Buffer from the context, or a new one when there is none
+    static PixelBuffer pixelBuffer(CodecContext context, int width, int height) {
+        return context == null ? new PixelBuffer(width, height) : context.pixelBuffer(width, height);
+    }
+
+    // Arrays handed out from a pool
+    public synchronized long getReusedCount() {
+        return reused;
+    }
+
+    // Arrays that had to be allocated because the pool had none of their class
+    public synchronized long getAllocatedCount() {
+        return allocated;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+}
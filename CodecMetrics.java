@@ -0,0 +1,409 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+// Where the codec spends its time: a latency histogram and the bytes allocated per stage,
+// plus the shape of the trees built and the bytes written and read. Utility, TiledCodec and
+// BatchPipeline record into it when one is set; every method is safe to call from many
+// threads at once. Stage counts are per tree, so a tiled file counts each of its tiles.
+//
+// register() publishes it over JMX as quadtree:type=CodecMetrics (batch totals) and
+// quadtree:type=CodecStage,name=<stage> (one per stage), for jconsole or any JMX client.
+// writeReport() saves the same numbers as CSV or JSON.
+public class CodecMetrics {
+
+    public enum Stage {
+        LOAD("load"), // image file to PixelBuffer
+        BUILD("build"), // PixelBuffer to tree, including the summed-area table
+        SERIALIZE("serialize"), // tree to file bytes
+        UPDATE("update"), // previous file and changed pixels to a new file, without a full tree
+        DESERIALIZE("deserialize"), // file bytes to tree, or straight to pixels for formats without one
+        RECONSTRUCT("reconstruct"), // tree to PixelBuffer
+        SAVE("save"), // PixelBuffer to image file
+        METRICS("metrics"); // QualityMetrics against the original
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    // Latency buckets: four per power of two nanoseconds, so a percentile read from them is
+    // at most a quarter above the true value. Values below 4 ns get a bucket each.
+    static final int BUCKETS = 4 * 61 + 4; // the last holds Long.MAX_VALUE
+
+    static int bucket(long nanos) {
+        if (nanos < 4) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return 4 * (exponent - 1) + (int) ((nanos >>> (exponent - 2)) & 3);
+    }
+
+    static long bucketLowerBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4 + 1;
+        return (4L + bucket % 4) << (exponent - 2);
+    }
+
+    // Largest value that falls in the bucket
+    static long bucketUpperBound(int bucket) {
+        return bucket + 1 < BUCKETS ? bucketLowerBound(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+
+    private final LongAdder trees = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder leaves = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final LongAdder treeHeapBytes = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+    public CodecMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms[stage.ordinal()] = new Histogram();
+        }
+    }
+
+    // HotSpot's per-thread allocation counter, when the JVM has one
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    private long allocatedBytes() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Measures one stage on the calling thread until stop()
+    public Sample start(Stage stage) {
+        return new Sample(this, stage, System.nanoTime(), allocatedBytes());
+    }
+
+    // Sample that records nothing when metrics is null
+    static Sample start(CodecMetrics metrics, Stage stage) {
+        return metrics == null ? Sample.NONE : metrics.start(stage);
+    }
+
+    public static class Sample {
+        static final Sample NONE = new Sample(null, null, 0, 0);
+
+        private final CodecMetrics metrics;
+        private final Stage stage;
+        private final long startNanos;
+        private final long startAllocated;
+
+        Sample(CodecMetrics metrics, Stage stage, long startNanos, long startAllocated) {
+            this.metrics = metrics;
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.startAllocated = startAllocated;
+        }
+
+        public void stop() {
+            if (metrics != null) {
+                metrics.histograms[stage.ordinal()].record(System.nanoTime() - startNanos,
+                        metrics.allocatedBytes() - startAllocated);
+            }
+        }
+    }
+
+    public void recordTree(long nodeCount, long leafCount, int depth, long heapBytes) {
+        trees.increment();
+        nodes.add(nodeCount);
+        leaves.add(leafCount);
+        maxDepth.accumulate(depth);
+        treeHeapBytes.add(heapBytes);
+    }
+
+    public void recordBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void recordBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    // Counts what passes through into bytesWritten
+    OutputStream countWrites(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesWritten.add(len);
+            }
+        };
+    }
+
+    private static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final LongAdder allocatedBytes = new LongAdder();
+
+        void record(long nanos, long allocated) {
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            allocatedBytes.add(Math.max(allocated, 0));
+        }
+
+        // Upper bound of the bucket holding the given fraction of the samples, capped at the
+        // largest sample seen
+        long percentileNanos(double fraction) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(b), maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+    }
+
+    // JMX views
+
+    public interface CodecMetricsMBean {
+        long getTrees();
+
+        long getNodes();
+
+        long getLeaves();
+
+        long getMaxDepth();
+
+        long getTreeHeapBytes();
+
+        long getBytesWritten();
+
+        long getBytesRead();
+    }
+
+    public interface CodecStageMBean {
+        long getCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP90Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+
+        long getAllocatedBytes();
+
+        long[] getBucketCounts();
+    }
+
+    private class Totals implements CodecMetricsMBean {
+        public long getTrees() {
+            return trees.sum();
+        }
+
+        public long getNodes() {
+            return nodes.sum();
+        }
+
+        public long getLeaves() {
+            return leaves.sum();
+        }
+
+        public long getMaxDepth() {
+            return maxDepth.get();
+        }
+
+        public long getTreeHeapBytes() {
+            return treeHeapBytes.sum();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+    }
+
+    private class StageView implements CodecStageMBean {
+        private final Histogram histogram;
+
+        StageView(Stage stage) {
+            this.histogram = histograms[stage.ordinal()];
+        }
+
+        public long getCount() {
+            return histogram.count.sum();
+        }
+
+        public double getTotalMillis() {
+            return histogram.totalNanos.sum() / 1e6;
+        }
+
+        public double getMeanMillis() {
+            long count = getCount();
+            return count == 0 ? 0 : getTotalMillis() / count;
+        }
+
+        public double getP50Millis() {
+            return histogram.percentileNanos(0.50) / 1e6;
+        }
+
+        public double getP90Millis() {
+            return histogram.percentileNanos(0.90) / 1e6;
+        }
+
+        public double getP99Millis() {
+            return histogram.percentileNanos(0.99) / 1e6;
+        }
+
+        public double getMaxMillis() {
+            return histogram.maxNanos.get() / 1e6;
+        }
+
+        public long getAllocatedBytes() {
+            return histogram.allocatedBytes.sum();
+        }
+
+        public long[] getBucketCounts() {
+            long[] counts = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                counts[b] = histogram.buckets.get(b);
+            }
+            return counts;
+        }
+    }
+
+    public CodecMetricsMBean getTotals() {
+        return new Totals();
+    }
+
+    public CodecStageMBean getStage(Stage stage) {
+        return new StageView(stage);
+    }
+
+    // Publishes the totals and every stage on the platform MBean server, replacing the beans
+    // of an earlier instance
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        register(server, new ObjectName("quadtree:type=CodecMetrics"),
+                new StandardMBean(getTotals(), CodecMetricsMBean.class));
+        for (Stage stage : Stage.values()) {
+            register(server, new ObjectName("quadtree:type=CodecStage,name=" + stage.label),
+                    new StandardMBean(getStage(stage), CodecStageMBean.class));
+        }
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+    }
+
+    // Report
+
+    // CSV when the file name ends in .csv, JSON otherwise
+    public void writeReport(String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
+            if (fileName.toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                writeCsv(out);
+            } else {
+                writeJson(out);
+            }
+        }
+    }
+
+    // One row per stage, then the totals as name,value rows
+    void writeCsv(PrintWriter out) {
+        out.println("stage,count,total_ms,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,allocated_bytes");
+        for (Stage stage : Stage.values()) {
+            CodecStageMBean view = getStage(stage);
+            out.printf(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d%n", stage.label, view.getCount(),
+                    view.getTotalMillis(), view.getMeanMillis(), view.getP50Millis(), view.getP90Millis(),
+                    view.getP99Millis(), view.getMaxMillis(), view.getAllocatedBytes());
+        }
+        out.println();
+        out.println("total,value");
+        CodecMetricsMBean totals = getTotals();
+        out.println("trees," + totals.getTrees());
+        out.println("nodes," + totals.getNodes());
+        out.println("leaves," + totals.getLeaves());
+        out.println("max_depth," + totals.getMaxDepth());
+        out.println("tree_heap_bytes," + totals.getTreeHeapBytes());
+        out.println("bytes_written," + totals.getBytesWritten());
+        out.println("bytes_read," + totals.getBytesRead());
+    }
+
+    void writeJson(PrintWriter out) {
+        CodecMetricsMBean totals = getTotals();
+        out.println("{");
+        out.printf("  \"trees\": %d,%n", totals.getTrees());
+        out.printf("  \"nodes\": %d,%n", totals.getNodes());
+        out.printf("  \"leaves\": %d,%n", totals.getLeaves());
+        out.printf("  \"maxDepth\": %d,%n", totals.getMaxDepth());
+        out.printf("  \"treeHeapBytes\": %d,%n", totals.getTreeHeapBytes());
+        out.printf("  \"bytesWritten\": %d,%n", totals.getBytesWritten());
+        out.printf("  \"bytesRead\": %d,%n", totals.getBytesRead());
+        out.println("  \"stages\": {");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            CodecStageMBean view = getStage(stages[i]);
+            out.printf(Locale.ROOT, "    \"%s\": {\"count\": %d, \"totalMillis\": %.3f, \"meanMillis\": %.3f, "
+                    + "\"p50Millis\": %.3f, \"p90Millis\": %.3f, \"p99Millis\": %.3f, \"maxMillis\": %.3f, "
+                    + "\"allocatedBytes\": %d, \"histogram\": %s}%s%n", stages[i].label, view.getCount(),
+                    view.getTotalMillis(), view.getMeanMillis(), view.getP50Millis(), view.getP90Millis(),
+                    view.getP99Millis(), view.getMaxMillis(), view.getAllocatedBytes(),
+                    buckets(view.getBucketCounts()), i + 1 < stages.length ? "," : "");
+        }
+        out.println("  }");
+        out.println("}");
+    }
+
+    // Non-empty buckets as {"lowest nanoseconds of the bucket": count}
+    private static String buckets(long[] counts) {
+        StringBuilder json = new StringBuilder("{");
+        for (int b = 0; b < counts.length; b++) {
+            if (counts[b] != 0) {
+                json.append(json.length() > 1 ? ", " : "").append('"').append(bucketLowerBound(b)).append("\": ")
+                        .append(counts[b]);
+            }
+        }
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+// Content-addressed on-disk store of compressed files. The key is a 128-bit hash of the
+// pixels plus a 128-bit hash of the codec settings, so an image that was already compressed
+// the same way is served from disk without building a QuadTree, whatever its file name.
+// Each entry starts with the settings it was written with, and get() only returns it for
+// the same settings, so two settings whose hashes collide cannot serve each other's bytes.
+//
+// Entries are evicted least recently used first once the store holds more than maxBytes.
+// Use order survives restarts through the files' modification times, which a hit renews.
+// One instance can be shared by several threads; entries are written to a temporary
+// file and moved into place, so readers never see half an entry.
+public class CompressionCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // key -> entry size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long bytesServed;
+
+    public CompressionCache(String directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.directory = Paths.get(directory);
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory);
+        loadEntries();
+    }
+
+    public CompressionCache(String directory) throws IOException {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    // Oldest first, so the LinkedHashMap starts in the order the files were last used
+    private void loadEntries() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        long[] modified = new long[files.size()];
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            modified[i] = Files.getLastModifiedTime(files.get(i)).toMillis();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+        for (int i : order) {
+            String name = files.get(i).getFileName().toString();
+            long size = Files.size(files.get(i));
+            entries.put(name.substring(0, name.length() - SUFFIX.length()), size);
+            totalBytes += size;
+        }
+        evict();
+    }
+
+    // Key for these pixels compressed with these settings (Utility.cacheSettings())
+    public static String key(PixelBuffer pixels, String settings) {
+        long first = 0x9E3779B97F4A7C15L ^ pixels.getWidth();
+        long second = 0xC2B2AE3D27D4EB4FL ^ pixels.getHeight();
+        int[] data = pixels.getData();
+        for (int y = 0; y < pixels.getHeight(); y++) {
+            for (int i = pixels.index(0, y), end = i + pixels.getWidth(); i < end; i++) {
+                first = (first ^ data[i]) * 0x100000001B3L;
+                second = Long.rotateLeft(second + data[i] * 0x9E3779B97F4A7C15L, 31) * 0xC2B2AE3D27D4EB4FL;
+            }
+        }
+        return hex(mix(first)) + hex(mix(second)) + "-" + hash(settings);
+    }
+
+    // The same 128-bit hash over the characters of the settings
+    private static String hash(String settings) {
+        long first = 0x9E3779B97F4A7C15L ^ settings.length();
+        long second = 0xC2B2AE3D27D4EB4FL;
+        for (int i = 0; i < settings.length(); i++) {
+            char c = settings.charAt(i);
+            first = (first ^ c) * 0x100000001B3L;
+            second = Long.rotateLeft(second + c * 0x9E3779B97F4A7C15L, 31) * 0xC2B2AE3D27D4EB4FL;
+        }
+        return hex(mix(first)) + hex(mix(second));
+    }
+
+    // Final avalanche so that nearby inputs give unrelated keys
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static String hex(long value) {
+        String digits = Long.toHexString(value);
+        return "0".repeat(16 - digits.length()) + digits;
+    }
+
+    // The stored bytes, or null on a miss or when the entry was written with other settings
+    public byte[] get(String key, String settings) throws IOException {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses++;
+                return null;
+            }
+        }
+        Path file = entryPath(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted by another thread between the lookup and the read
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        }
+        byte[] stored = settingsHeader(settings);
+        if (bytes.length < stored.length
+                || !Arrays.equals(bytes, 0, stored.length, stored, 0, stored.length)) {
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        }
+        synchronized (this) {
+            hits++;
+            bytesServed += bytes.length - stored.length;
+        }
+        return Arrays.copyOfRange(bytes, stored.length, bytes.length);
+    }
+
+    public void put(String key, String settings, byte[] bytes) throws IOException {
+        byte[] header = settingsHeader(settings);
+        long size = header.length + (long) bytes.length;
+        if (size > maxBytes) {
+            return; // would evict everything and still not fit
+        }
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(header);
+                out.write(bytes);
+            }
+            Files.move(temporary, entryPath(key), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        synchronized (this) {
+            Long previous = entries.put(key, size);
+            totalBytes += size - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    private synchronized void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Files.deleteIfExists(entryPath(entry.getKey()));
+            totalBytes -= entry.getValue();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    // Written before the bytes of every entry: the length of the settings, then their UTF-8
+    private static byte[] settingsHeader(String settings) {
+        byte[] encoded = settings.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[4 + encoded.length];
+        header[0] = (byte) (encoded.length >>> 24);
+        header[1] = (byte) (encoded.length >>> 16);
+        header[2] = (byte) (encoded.length >>> 8);
+        header[3] = (byte) encoded.length;
+        System.arraycopy(encoded, 0, header, 4, encoded.length);
+        return header;
+    }
+
+    private Path entryPath(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // Compressed bytes returned from the store instead of being produced again
+    public synchronized long getBytesServed() {
+        return bytesServed;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+}
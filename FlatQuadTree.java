@@ -0,0 +1,228 @@
+import java.util.Arrays;
+
+// QuadTree stored in two parallel int arrays indexed by node id instead of QuadNode objects.
+//
+// The children of a split node occupy consecutive ids starting at firstChild[id], in the
+// order nw, ne, sw, se. Children outside the image are not stored, exactly as in the file
+// format, so which of the four are present follows from the node's position. Coordinates
+// and sizes are never stored; they are carried down while traversing from the root.
+public class FlatQuadTree {
+
+    public static final int LEAF = -1;
+
+    final int width;
+    final int height;
+    final int rootSize;
+
+    int nodeCount;
+    int leafCount;
+    int[] firstChild; // LEAF, or the id of the first present child
+    int[] color; // packed 0xRRGGBB
+
+    // Where the node arrays come from and go back to; null allocates them
+    private final CodecContext context;
+
+    FlatQuadTree(int width, int height, int rootSize, int capacity) {
+        this(width, height, rootSize, capacity, null);
+    }
+
+    FlatQuadTree(int width, int height, int rootSize, int capacity, CodecContext context) {
+        this.width = width;
+        this.height = height;
+        this.rootSize = rootSize;
+        this.context = context;
+        this.firstChild = newArray(Math.max(capacity, 1));
+        this.color = newArray(Math.max(capacity, 1));
+    }
+
+    private int[] newArray(int length) {
+        return context == null ? new int[length] : context.ints(length);
+    }
+
+    // Builds the same tree as new QuadTree(table, 0, 0, rootSize)
+    public static FlatQuadTree build(SummedAreaTable table, int rootSize) {
+        return build(table, rootSize, QuadTree.VARIANCE_THRESHOLD);
+    }
+
+    // Nodes whose variance is above 'threshold' are split
+    public static FlatQuadTree build(SummedAreaTable table, int rootSize, double threshold) {
+        return build(table, rootSize, threshold, null);
+    }
+
+    // Node arrays borrowed from the context; give them back with recycle()
+    public static FlatQuadTree build(SummedAreaTable table, int rootSize, double threshold, CodecContext context) {
+        FlatQuadTree tree = new FlatQuadTree(table.getWidth(), table.getHeight(), rootSize, 1024, context);
+        tree.allocate(1);
+        tree.build(table, 0, 0, 0, rootSize, threshold, new int[3]);
+        tree.trim();
+        return tree;
+    }
+
+    // The subtree rooted at (x, y, size) as a tree of its own, node 0 being that square. Only
+    // for ParallelQuadTreeBuilder, which copies it into the final tree with copySubtree.
+    static FlatQuadTree buildSubtree(SummedAreaTable table, int x, int y, int size, double threshold) {
+        FlatQuadTree subtree = new FlatQuadTree(table.getWidth(), table.getHeight(), size, 64);
+        subtree.allocate(1);
+        subtree.build(table, 0, x, y, size, threshold, new int[3]);
+        return subtree;
+    }
+
+    // Copies node 'id' of 'subtree', the square (x, y, size), and everything below it into
+    // node 'target'. Ids are handed out in the order build() would have used.
+    void copySubtree(FlatQuadTree subtree, int id, int target, int x, int y, int size) {
+        color[target] = subtree.color[id];
+        if (subtree.firstChild[id] == LEAF) {
+            firstChild[target] = LEAF;
+            leafCount++;
+            return;
+        }
+
+        int halfSize = size >> 1;
+        int first = allocate(childCount(x, y, halfSize));
+        firstChild[target] = first;
+        int child = subtree.firstChild[id];
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+            int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+            if (childX < width && childY < height) {
+                copySubtree(subtree, child++, first++, childX, childY, halfSize);
+            }
+        }
+    }
+
+    private void build(SummedAreaTable table, int id, int x, int y, int size, double threshold, int[] avgColor) {
+        table.averageColor(x, y, size, avgColor);
+        double variance = table.variance(x, y, size, avgColor);
+        color[id] = pack(avgColor);
+
+        if (size > 1 && variance > threshold) {
+            int halfSize = size >> 1;
+            int first = allocate(childCount(x, y, halfSize));
+            firstChild[id] = first;
+
+            int child = first;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+                int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+                if (childX < width && childY < height) {
+                    build(table, child++, childX, childY, halfSize, threshold, avgColor);
+                }
+            }
+        } else {
+            firstChild[id] = LEAF;
+            leafCount++;
+        }
+    }
+
+    // Number of the four quadrants of a split at (x, y) that start inside the image
+    int childCount(int x, int y, int halfSize) {
+        int columns = x + halfSize < width ? 2 : 1;
+        int rows = y + halfSize < height ? 2 : 1;
+        return columns * rows;
+    }
+
+    // Reserves 'count' consecutive ids and returns the first
+    int allocate(int count) {
+        int first = nodeCount;
+        nodeCount += count;
+        if (nodeCount > firstChild.length) {
+            int capacity = Math.max(nodeCount, firstChild.length << 1);
+            firstChild = grow(firstChild, first, capacity);
+            color = grow(color, first, capacity);
+        }
+        return first;
+    }
+
+    private int[] grow(int[] array, int used, int capacity) {
+        if (context == null) {
+            return Arrays.copyOf(array, capacity);
+        }
+        int[] grown = context.ints(capacity);
+        System.arraycopy(array, 0, grown, 0, used);
+        context.recycle(array);
+        return grown;
+    }
+
+    // Pooled arrays are kept at their class length; the copy would be thrown away next time
+    void trim() {
+        if (context == null && firstChild.length != nodeCount) {
+            firstChild = Arrays.copyOf(firstChild, nodeCount);
+            color = Arrays.copyOf(color, nodeCount);
+        }
+    }
+
+    public void reconstructImage(PixelBuffer pixels) {
+        reconstructImage(0, 0, 0, rootSize, pixels);
+    }
+
+    private void reconstructImage(int id, int x, int y, int size, PixelBuffer pixels) {
+        if (firstChild[id] == LEAF) {
+            pixels.fill(x, y, size, size, color[id]);
+            return;
+        }
+
+        int halfSize = size >> 1;
+        int child = firstChild[id];
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+            int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+            if (childX < width && childY < height) {
+                reconstructImage(child++, childX, childY, halfSize, pixels);
+            }
+        }
+    }
+
+    // Returns the node arrays to the context of the build; the tree is unusable after
+    public void recycle() {
+        if (context != null) {
+            context.recycle(firstChild);
+            context.recycle(color);
+            firstChild = null;
+            color = null;
+        }
+    }
+
+    // Levels below the root; 0 for a tree that is a single leaf
+    public int getDepth() {
+        return depth(0, 0, 0, rootSize);
+    }
+
+    private int depth(int id, int x, int y, int size) {
+        if (firstChild[id] == LEAF) {
+            return 0;
+        }
+        int halfSize = size >> 1;
+        int child = firstChild[id];
+        int deepest = 0;
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+            int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+            if (childX < width && childY < height) {
+                deepest = Math.max(deepest, depth(child++, childX, childY, halfSize));
+            }
+        }
+        return 1 + deepest;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    // Bytes held by the node arrays
+    public long estimateHeapBytes() {
+        return 2 * (16L + 4L * firstChild.length);
+    }
+
+    // What the same tree costs as QuadNode objects with their int[3] colors
+    public long estimateQuadNodeHeapBytes() {
+        return (long) nodeCount * QuadTree.NODE_HEAP_BYTES;
+    }
+
+    static int pack(int[] rgb) {
+        return (rgb[0] << 16) | (rgb[1] << 8) | rgb[2];
+    }
+}
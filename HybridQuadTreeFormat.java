@@ -0,0 +1,263 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Entropy-coded QuadTree file format: the QuadTree decides which blocks share a color,
+// canonical Huffman codes what is left.
+//
+//   magic "QTH", version byte
+//   int width, int height, int rootSize
+//   int nodeCount, int leafCount
+//   byte rootSplit (1 if the root is split)
+//   16 code lengths for the split masks, then 256 code lengths for the color residuals
+//   bitstream in pre-order (nw, ne, sw, se), per node:
+//     split node: a 4-bit mask of which of its present children split in turn
+//     leaf:       the R, G and B residuals of its color against the prediction, each mod 256
+//
+// A leaf's color is predicted per channel from the already decoded pixels next to its top
+// left corner (left, above, above-left) with the LOCO-I median edge detector. Pre-order
+// visits the blocks in Z order, so everything above and to the left of a block is decoded
+// before it. The residuals cluster around 0 and code in fewer than 8 bits. Children outside
+// the image are implied by the position, as in QuadTreeFormat.
+public class HybridQuadTreeFormat {
+
+    public static final byte[] MAGIC = { 'Q', 'T', 'H' };
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 4 + 5 * 4 + 1;
+
+    private static final int COLOR_CHANNELS = 3;
+    private static final int MASK_SYMBOLS = 16;
+    private static final int RESIDUAL_SYMBOLS = 256;
+    private static final int NO_NEIGHBOUR_PREDICTION = PixelBuffer.pack(128, 128, 128);
+
+    // Symbols are recorded as (MASK or a channel) << 8 | value between the two encoder passes
+    private static final int MASK = 3;
+
+    // True if the buffer starts with the hybrid format magic (any version)
+    public static boolean isHybrid(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length + 1) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(start + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void write(FlatQuadTree tree, OutputStream out) throws IOException {
+        // First pass reconstructs the image to get the predictions and records the symbols
+        Encoder encoder = new Encoder(tree);
+        encoder.encode(0, 0, 0, tree.rootSize);
+
+        int[] maskFrequencies = new int[MASK_SYMBOLS];
+        int[] residualFrequencies = new int[RESIDUAL_SYMBOLS];
+        for (int i = 0; i < encoder.symbolCount; i++) {
+            int symbol = encoder.symbols[i];
+            if (symbol >> 8 == MASK) {
+                maskFrequencies[symbol & 0xFF]++;
+            } else {
+                residualFrequencies[symbol & 0xFF]++;
+            }
+        }
+        CanonicalHuffman maskCode = new CanonicalHuffman(CanonicalHuffman.codeLengths(maskFrequencies));
+        CanonicalHuffman residualCode = new CanonicalHuffman(CanonicalHuffman.codeLengths(residualFrequencies));
+
+        // Second pass codes them in the same order
+        BitWriter bits = new BitWriter(encoder.symbolCount);
+        for (int i = 0; i < encoder.symbolCount; i++) {
+            int symbol = encoder.symbols[i];
+            if (symbol >> 8 == MASK) {
+                maskCode.encode(symbol & 0xFF, bits);
+            } else {
+                residualCode.encode(symbol & 0xFF, bits);
+            }
+        }
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeInt(tree.width);
+        dos.writeInt(tree.height);
+        dos.writeInt(tree.rootSize);
+        dos.writeInt(tree.nodeCount);
+        dos.writeInt(tree.leafCount);
+        dos.writeByte(tree.firstChild[0] == FlatQuadTree.LEAF ? 0 : 1);
+        writeLengths(maskCode, MASK_SYMBOLS, dos);
+        writeLengths(residualCode, RESIDUAL_SYMBOLS, dos);
+        dos.write(bits.toByteArray());
+        dos.flush();
+    }
+
+    private static void writeLengths(CanonicalHuffman code, int symbols, DataOutputStream dos) throws IOException {
+        for (int symbol = 0; symbol < symbols; symbol++) {
+            dos.writeByte(code.getLength(symbol));
+        }
+    }
+
+    // Decodes straight into the pixel array
+    public static PixelBuffer read(ByteBuffer buffer) throws IOException {
+        return read(buffer, null);
+    }
+
+    // Same, into a buffer from the context when it is not null
+    public static PixelBuffer read(ByteBuffer buffer, CodecContext context) throws IOException {
+        if (!isHybrid(buffer)) {
+            throw new IOException("Not a hybrid QuadTree file");
+        }
+        int start = buffer.position();
+        int version = buffer.get(start + MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("Unsupported hybrid QuadTree version " + version);
+        }
+        int lengthsOffset = start + HEADER_BYTES;
+        int bitsOffset = lengthsOffset + MASK_SYMBOLS + RESIDUAL_SYMBOLS;
+        if (buffer.limit() < bitsOffset) {
+            throw new IOException("Truncated hybrid QuadTree file");
+        }
+
+        int width = buffer.getInt(start + 4);
+        int height = buffer.getInt(start + 8);
+        int rootSize = buffer.getInt(start + 12);
+        boolean rootSplit = buffer.get(start + 24) != 0;
+        CanonicalHuffman maskCode = readLengths(buffer, lengthsOffset, MASK_SYMBOLS);
+        CanonicalHuffman residualCode = readLengths(buffer, lengthsOffset + MASK_SYMBOLS, RESIDUAL_SYMBOLS);
+
+        PixelBuffer pixels = CodecContext.pixelBuffer(context, width, height);
+        Decoder decoder = new Decoder(new BitReader(buffer, bitsOffset), maskCode, residualCode, pixels);
+        try {
+            decoder.decode(0, 0, rootSize, rootSplit);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt hybrid QuadTree file", e);
+        }
+        return pixels;
+    }
+
+    private static CanonicalHuffman readLengths(ByteBuffer buffer, int offset, int symbols) throws IOException {
+        int[] lengths = new int[symbols];
+        for (int symbol = 0; symbol < symbols; symbol++) {
+            lengths[symbol] = buffer.get(offset + symbol) & 0xFF;
+        }
+        try {
+            return new CanonicalHuffman(lengths);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt hybrid QuadTree file", e);
+        }
+    }
+
+    // Median edge detector on the pixels left of, above and above-left of (x, y)
+    static int predict(PixelBuffer pixels, int x, int y) {
+        int[] data = pixels.getData();
+        int index = pixels.index(x, y);
+        int stride = pixels.getStride();
+        if (y == 0) {
+            return x == 0 ? NO_NEIGHBOUR_PREDICTION : data[index - 1];
+        }
+        if (x == 0) {
+            return data[index - stride];
+        }
+        int left = data[index - 1];
+        int above = data[index - stride];
+        int aboveLeft = data[index - stride - 1];
+        return PixelBuffer.pack(median(left >> 16 & 0xFF, above >> 16 & 0xFF, aboveLeft >> 16 & 0xFF),
+                median(left >> 8 & 0xFF, above >> 8 & 0xFF, aboveLeft >> 8 & 0xFF),
+                median(left & 0xFF, above & 0xFF, aboveLeft & 0xFF));
+    }
+
+    // Same as the usual three-way branch on aboveLeft, written with min and max so the
+    // JIT can emit conditional moves instead of unpredictable jumps
+    private static int median(int left, int above, int aboveLeft) {
+        int gradient = left + above - aboveLeft;
+        return Math.max(Math.min(left, above), Math.min(Math.max(left, above), gradient));
+    }
+
+    // Walks the tree in file order, reconstructing the image as the decoder will
+    private static class Encoder {
+        private final FlatQuadTree tree;
+        private final PixelBuffer pixels;
+        final int[] symbols;
+        int symbolCount;
+
+        Encoder(FlatQuadTree tree) {
+            this.tree = tree;
+            this.pixels = new PixelBuffer(tree.width, tree.height);
+            this.symbols = new int[tree.leafCount * COLOR_CHANNELS + tree.nodeCount - tree.leafCount];
+        }
+
+        void encode(int id, int x, int y, int size) {
+            int first = tree.firstChild[id];
+            if (first == FlatQuadTree.LEAF) {
+                int rgb = tree.color[id];
+                int prediction = predict(pixels, x, y);
+                symbols[symbolCount++] = ((rgb >> 16) - (prediction >> 16)) & 0xFF;
+                symbols[symbolCount++] = 1 << 8 | ((rgb >> 8) - (prediction >> 8)) & 0xFF;
+                symbols[symbolCount++] = 2 << 8 | (rgb - prediction) & 0xFF;
+                pixels.fill(x, y, size, size, rgb);
+                return;
+            }
+
+            int halfSize = size >> 1;
+            int mask = 0;
+            int child = first;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+                int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+                if (childX < tree.width && childY < tree.height) {
+                    if (tree.firstChild[child++] != FlatQuadTree.LEAF) {
+                        mask |= 1 << quadrant;
+                    }
+                }
+            }
+            symbols[symbolCount++] = MASK << 8 | mask;
+
+            child = first;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+                int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+                if (childX < tree.width && childY < tree.height) {
+                    encode(child++, childX, childY, halfSize);
+                }
+            }
+        }
+    }
+
+    private static class Decoder {
+        private final BitReader in;
+        private final CanonicalHuffman maskCode;
+        private final CanonicalHuffman residualCode;
+        private final PixelBuffer pixels;
+        private final int width;
+        private final int height;
+
+        Decoder(BitReader in, CanonicalHuffman maskCode, CanonicalHuffman residualCode, PixelBuffer pixels) {
+            this.in = in;
+            this.maskCode = maskCode;
+            this.residualCode = residualCode;
+            this.pixels = pixels;
+            this.width = pixels.getWidth();
+            this.height = pixels.getHeight();
+        }
+
+        void decode(int x, int y, int size, boolean split) {
+            if (!split) {
+                int prediction = predict(pixels, x, y);
+                int red = ((prediction >> 16) + residualCode.decode(in)) & 0xFF;
+                int green = ((prediction >> 8) + residualCode.decode(in)) & 0xFF;
+                int blue = (prediction + residualCode.decode(in)) & 0xFF;
+                pixels.fill(x, y, size, size, PixelBuffer.pack(red, green, blue));
+                return;
+            }
+
+            int mask = maskCode.decode(in);
+            int halfSize = size >> 1;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+                int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+                if (childX < width && childY < height) {
+                    decode(childX, childY, halfSize, (mask & (1 << quadrant)) != 0);
+                }
+            }
+        }
+    }
+}
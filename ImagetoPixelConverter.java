@@ -1,44 +1,98 @@
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 
 public class ImagetoPixelConverter {
     private BufferedImage image;
-    private int[][][] pixelData;
+    private PixelBuffer pixelBuffer;
 
     public ImagetoPixelConverter(String imagePath) {
         try {
             // Load the image from the specified file path
             File imageFile = new File(imagePath);
             this.image = ImageIO.read(imageFile);
-            
-            // Get image width and height
-            int width = image.getWidth();
-            int height = image.getHeight();
-            
-            // Initialize the pixelData array
-            this.pixelData = new int[width][height][3];
-            
-            // Convert the image into pixelData
-            for (int x = 0; x < width; x++) {
+
+            // Convert the image into packed RGB pixels
+            this.pixelBuffer = toPixelBuffer(image);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Copies the pixels straight out of the raster's DataBuffer for the common int and
+    // 3-byte layouts; any other type goes through one bulk getRGB conversion.
+    public static PixelBuffer toPixelBuffer(BufferedImage image) {
+        return toPixelBuffer(image, null);
+    }
+
+    // Same, into a buffer from the context when it is not null
+    public static PixelBuffer toPixelBuffer(BufferedImage image, CodecContext context) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelBuffer pixels = CodecContext.pixelBuffer(context, width, height);
+        int[] data = pixels.getData();
+        Raster raster = image.getRaster();
+        int translateX = -raster.getSampleModelTranslateX();
+        int translateY = -raster.getSampleModelTranslateY();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+                int[] source = buffer.getData();
+                int scanline = model.getScanlineStride();
+                int base = buffer.getOffset() + model.getOffset(translateX, translateY);
                 for (int y = 0; y < height; y++) {
-                    int color = image.getRGB(x, y);
-                    int red = (color >> 16) & 0xFF;
-                    int green = (color >> 8) & 0xFF;
-                    int blue = color & 0xFF;
-                    pixelData[x][y][0] = red;
-                    pixelData[x][y][1] = green;
-                    pixelData[x][y][2] = blue;
+                    int in = base + y * scanline;
+                    int out = y * width;
+                    for (int x = 0; x < width; x++) {
+                        data[out + x] = source[in + x] & 0xFFFFFF;
+                    }
                 }
+                break;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+                byte[] source = buffer.getData();
+                int scanline = model.getScanlineStride();
+                int pixelStride = model.getPixelStride();
+                int[] bandOffsets = model.getBandOffsets(); // red, green, blue
+                int base = buffer.getOffset() + translateY * scanline + translateX * pixelStride;
+                for (int y = 0; y < height; y++) {
+                    int in = base + y * scanline;
+                    int out = y * width;
+                    for (int x = 0; x < width; x++, in += pixelStride) {
+                        data[out + x] = ((source[in + bandOffsets[0]] & 0xFF) << 16)
+                                | ((source[in + bandOffsets[1]] & 0xFF) << 8)
+                                | (source[in + bandOffsets[2]] & 0xFF);
+                    }
+                }
+                break;
+            }
+            default:
+                image.getRGB(0, 0, width, height, data, 0, width);
+                for (int i = 0; i < width * height; i++) {
+                    data[i] &= 0xFFFFFF;
+                }
         }
+        return pixels;
+    }
+
+    public PixelBuffer getPixelBuffer() {
+        return pixelBuffer;
     }
 
+    // int[width][height][3] copy of the pixels, for the original API
     public int[][][] getPixelData() {
-        return pixelData;
+        return pixelBuffer.toArray();
     }
 
     public int getWidth() {
@@ -50,4 +104,3 @@ public class ImagetoPixelConverter {
     }
     
 }
-
@@ -0,0 +1,81 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Read-only memory mapping of a compressed file. The decoders only use absolute gets on
+// a ByteBuffer, so they parse the mapping in place: the bytes are never copied onto the
+// heap, and concurrent readers of the same file share the pages of the OS page cache.
+//
+// The mapping stays valid after the channel is closed and is released when the buffer is
+// garbage collected.
+public class MappedFile {
+
+    // A single ByteBuffer cannot address more than this
+    public static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+
+    private MappedFile() {
+    }
+
+    public static MappedByteBuffer map(String fileName) throws IOException {
+        return map(Paths.get(fileName));
+    }
+
+    public static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return map(channel);
+        }
+    }
+
+    public static MappedByteBuffer map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > MAX_MAPPED_BYTES) {
+            throw new IOException("File too large to map: " + size + " bytes");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    // Stream over the remaining bytes, for readers that need an InputStream
+    // (ObjectInputStream for the legacy format)
+    public static InputStream asStream(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        return new ByteBufferInputStream(buffer.slice());
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Builds a QuadTree from a SummedAreaTable on a ForkJoinPool. The four quadrants of a node
+// are independent, so nodes larger than the cutoff fork their children; smaller nodes use
+// the sequential QuadTree.build. The result is identical to the sequential tree.
+//
+// buildFlat does the same for FlatQuadTree. Its ids depend on the order nodes are built in,
+// so every task below the cutoff builds its subtree into a FlatQuadTree of its own and one
+// sequential pass copies them into the final arrays in the order FlatQuadTree.build uses.
+public class ParallelQuadTreeBuilder {
+
+    public static final int DEFAULT_CUTOFF = 64;
+
+    private final ForkJoinPool pool;
+    private final int cutoff;
+
+    public ParallelQuadTreeBuilder() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CUTOFF);
+    }
+
+    // parallelism: worker threads; cutoff: node size at or below which recursion is sequential
+    public ParallelQuadTreeBuilder(int parallelism, int cutoff) {
+        if (parallelism < 1 || cutoff < 1) {
+            throw new IllegalArgumentException("parallelism and cutoff must be positive");
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.cutoff = cutoff;
+    }
+
+    public QuadTree build(SummedAreaTable table, int rootSize) {
+        return build(table, rootSize, QuadTree.VARIANCE_THRESHOLD);
+    }
+
+    // Nodes whose variance is above 'threshold' are split
+    public QuadTree build(SummedAreaTable table, int rootSize, double threshold) {
+        return new QuadTree(pool.invoke(new BuildTask(table, threshold, 0, 0, rootSize)));
+    }
+
+    // Same tree as FlatQuadTree.build(table, rootSize, threshold, context), ids included
+    public FlatQuadTree buildFlat(SummedAreaTable table, int rootSize, double threshold, CodecContext context) {
+        FlatPart root = pool.invoke(new FlatTask(table, threshold, 0, 0, rootSize));
+        FlatQuadTree tree = new FlatQuadTree(table.getWidth(), table.getHeight(), rootSize, 1024, context);
+        tree.allocate(1);
+        root.copyTo(tree, 0, 0, 0, rootSize);
+        tree.trim();
+        return tree;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getCutoff() {
+        return cutoff;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class BuildTask extends RecursiveTask<QuadNode> {
+        private static final long serialVersionUID = 1L;
+
+        private final SummedAreaTable table;
+        private final double threshold;
+        private final int x, y, size;
+
+        BuildTask(SummedAreaTable table, double threshold, int x, int y, int size) {
+            this.table = table;
+            this.threshold = threshold;
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        @Override
+        protected QuadNode compute() {
+            if (size <= cutoff) {
+                return QuadTree.build(table, x, y, size, threshold);
+            }
+            if (x >= table.getWidth() || y >= table.getHeight()) {
+                return null; // Boundary case
+            }
+
+            int[] avgColor = table.averageColor(x, y, size);
+            double variance = table.variance(x, y, size, avgColor);
+
+            QuadNode node = new QuadNode(x, y, size, avgColor);
+
+            if (variance > threshold) {
+                int halfSize = size >> 1;
+                BuildTask ne = new BuildTask(table, threshold, x + halfSize, y, halfSize);
+                BuildTask sw = new BuildTask(table, threshold, x, y + halfSize, halfSize);
+                BuildTask se = new BuildTask(table, threshold, x + halfSize, y + halfSize, halfSize);
+                ne.fork();
+                sw.fork();
+                se.fork();
+                node.nw = new BuildTask(table, threshold, x, y, halfSize).compute();
+                node.se = se.join();
+                node.sw = sw.join();
+                node.ne = ne.join();
+            }
+
+            return node;
+        }
+    }
+
+    // A subtree built below the cutoff, or a node above it with the parts of its quadrants
+    // (null for those outside the image)
+    private static class FlatPart {
+        FlatQuadTree subtree;
+        int color;
+        FlatPart[] quadrants;
+
+        void copyTo(FlatQuadTree tree, int id, int x, int y, int size) {
+            if (subtree != null) {
+                tree.copySubtree(subtree, 0, id, x, y, size);
+                return;
+            }
+            tree.color[id] = color;
+            int halfSize = size >> 1;
+            int child = tree.allocate(tree.childCount(x, y, halfSize));
+            tree.firstChild[id] = child;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                if (quadrants[quadrant] != null) {
+                    int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+                    int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+                    quadrants[quadrant].copyTo(tree, child++, childX, childY, halfSize);
+                }
+            }
+        }
+    }
+
+    private class FlatTask extends RecursiveTask<FlatPart> {
+        private static final long serialVersionUID = 1L;
+
+        private final SummedAreaTable table;
+        private final double threshold;
+        private final int x, y, size;
+
+        FlatTask(SummedAreaTable table, double threshold, int x, int y, int size) {
+            this.table = table;
+            this.threshold = threshold;
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        @Override
+        protected FlatPart compute() {
+            FlatPart part = new FlatPart();
+            int[] avgColor = size <= cutoff ? null : table.averageColor(x, y, size);
+            if (avgColor == null || table.variance(x, y, size, avgColor) <= threshold) {
+                part.subtree = FlatQuadTree.buildSubtree(table, x, y, size, threshold);
+                return part;
+            }
+
+            part.color = FlatQuadTree.pack(avgColor);
+            part.quadrants = new FlatPart[4];
+            FlatTask[] tasks = new FlatTask[4];
+            int halfSize = size >> 1;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+                int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+                if (childX < table.getWidth() && childY < table.getHeight()) {
+                    tasks[quadrant] = new FlatTask(table, threshold, childX, childY, halfSize);
+                }
+            }
+            // Fork all but the first, compute that one here
+            for (int quadrant = 3; quadrant > 0; quadrant--) {
+                if (tasks[quadrant] != null) {
+                    tasks[quadrant].fork();
+                }
+            }
+            part.quadrants[0] = tasks[0].compute();
+            for (int quadrant = 1; quadrant < 4; quadrant++) {
+                if (tasks[quadrant] != null) {
+                    part.quadrants[quadrant] = tasks[quadrant].join();
+                }
+            }
+            return part;
+        }
+    }
+}
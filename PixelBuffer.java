@@ -0,0 +1,125 @@
+// Contiguous image storage: one packed 0xRRGGBB int per pixel, rows stored one after another.
+// Pixel (x, y) lives at data[y * stride + x]. Replaces int[width][height][3], which needs
+// a separate 3-int array per pixel and two extra indirections per access.
+public class PixelBuffer {
+
+    // Spans shorter than this are filled with a plain loop
+    private static final int NARROW_SPAN = 8;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int[] data;
+
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    // Wraps an existing array; it may be longer than width * height
+    public PixelBuffer(int width, int height, int[] data) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        if (data.length < width * height) {
+            throw new IllegalArgumentException("Pixel array too small for " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+        this.data = data;
+    }
+
+    // Adapter from the int[x][y][channel] layout used by the original API
+    public static PixelBuffer fromArray(int[][][] pixels) {
+        int width = pixels.length;
+        int height = pixels[0].length;
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        int[] data = buffer.data;
+
+        for (int x = 0; x < width; x++) {
+            int[][] column = pixels[x];
+            for (int y = 0; y < height; y++) {
+                int[] pixel = column[y];
+                data[y * width + x] = (pixel[0] << 16) | (pixel[1] << 8) | pixel[2];
+            }
+        }
+        return buffer;
+    }
+
+    // Adapter back to int[x][y][channel]
+    public int[][][] toArray() {
+        int[][][] pixels = new int[width][height][3];
+        for (int y = 0; y < height; y++) {
+            int row = y * stride;
+            for (int x = 0; x < width; x++) {
+                int rgb = data[row + x];
+                pixels[x][y][0] = (rgb >> 16) & 0xFF;
+                pixels[x][y][1] = (rgb >> 8) & 0xFF;
+                pixels[x][y][2] = rgb & 0xFF;
+            }
+        }
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    // Backing array, row-major with getStride() ints per row
+    public int[] getData() {
+        return data;
+    }
+
+    public int index(int x, int y) {
+        return y * stride + x;
+    }
+
+    public int getRGB(int x, int y) {
+        return data[y * stride + x];
+    }
+
+    public void setRGB(int x, int y, int rgb) {
+        data[y * stride + x] = rgb;
+    }
+
+    // Sets the rectangle at (x, y), clipped to the image, one row span at a time. Rows are
+    // contiguous, so each span is a single Arrays.fill instead of per-pixel stores.
+    public void fill(int x, int y, int width, int height, int rgb) {
+        int xEnd = Math.min(x + width, this.width);
+        int yEnd = Math.min(y + height, this.height);
+        if (x >= xEnd) {
+            return;
+        }
+        if (xEnd - x < NARROW_SPAN) {
+            // Most leaves are a few pixels wide; plain stores beat the call per row
+            for (int row = y; row < yEnd; row++) {
+                for (int i = row * stride + x, end = row * stride + xEnd; i < end; i++) {
+                    data[i] = rgb;
+                }
+            }
+            return;
+        }
+        PixelKernels kernels = PixelKernels.get();
+        for (int row = y; row < yEnd; row++) {
+            int start = row * stride;
+            kernels.fill(data, start + x, start + xEnd, rgb);
+        }
+    }
+
+    // channel 0 = red, 1 = green, 2 = blue
+    public int get(int x, int y, int channel) {
+        return (data[y * stride + x] >> (16 - 8 * channel)) & 0xFF;
+    }
+
+    public static int pack(int red, int green, int blue) {
+        return (red << 16) | (green << 8) | blue;
+    }
+}
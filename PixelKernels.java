@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+// Inner loops over packed 0xRRGGBB pixel arrays. This class is the scalar version; when the
+// JVM runs with --add-modules jdk.incubator.vector, get() returns VectorPixelKernels (in
+// vector/, compiled separately) instead. It is loaded by name so the rest of the codec
+// compiles and runs without the incubator module.
+//
+// -Dquadtree.kernels=scalar forces the scalar version.
+public class PixelKernels {
+
+    // Layout of the 'out' arrays, per channel R, G, B
+    public static final int SUM = 0;
+    public static final int SQUARES = 3;
+    public static final int MAX = 6;
+
+    private static final PixelKernels INSTANCE = load();
+
+    public static PixelKernels get() {
+        return INSTANCE;
+    }
+
+    public static PixelKernels scalar() {
+        return new PixelKernels();
+    }
+
+    private static PixelKernels load() {
+        if ("scalar".equals(System.getProperty("quadtree.kernels"))) {
+            return new PixelKernels();
+        }
+        try {
+            return (PixelKernels) Class.forName("VectorPixelKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new PixelKernels(); // not compiled in, or jdk.incubator.vector not resolved
+        }
+    }
+
+    protected PixelKernels() {
+    }
+
+    public String getName() {
+        return "scalar";
+    }
+
+    // Adds the per-channel sums and sums of squares of data[from .. from + length) to
+    // out[SUM + c] and out[SQUARES + c]
+    public void sums(int[] data, int from, int length, long[] out) {
+        long sumR = 0, sumG = 0, sumB = 0;
+        long squareR = 0, squareG = 0, squareB = 0;
+        for (int i = from, end = from + length; i < end; i++) {
+            int rgb = data[i];
+            int red = (rgb >> 16) & 0xFF;
+            int green = (rgb >> 8) & 0xFF;
+            int blue = rgb & 0xFF;
+            sumR += red;
+            sumG += green;
+            sumB += blue;
+            squareR += red * red;
+            squareG += green * green;
+            squareB += blue * blue;
+        }
+        out[SUM] += sumR;
+        out[SUM + 1] += sumG;
+        out[SUM + 2] += sumB;
+        out[SQUARES] += squareR;
+        out[SQUARES + 1] += squareG;
+        out[SQUARES + 2] += squareB;
+    }
+
+    // Adds the per-channel absolute and squared differences of a[aFrom ..] and b[bFrom ..]
+    // over 'length' pixels to out[SUM + c] and out[SQUARES + c], and raises out[MAX + c] to
+    // the largest absolute difference
+    public void differences(int[] a, int aFrom, int[] b, int bFrom, int length, long[] out) {
+        long absR = 0, absG = 0, absB = 0;
+        long sqR = 0, sqG = 0, sqB = 0;
+        int maxR = 0, maxG = 0, maxB = 0;
+        for (int i = aFrom, j = bFrom, end = aFrom + length; i < end; i++, j++) {
+            int p = a[i];
+            int q = b[j];
+            int dr = Math.abs(((p >> 16) & 0xFF) - ((q >> 16) & 0xFF));
+            int dg = Math.abs(((p >> 8) & 0xFF) - ((q >> 8) & 0xFF));
+            int db = Math.abs((p & 0xFF) - (q & 0xFF));
+            absR += dr;
+            absG += dg;
+            absB += db;
+            sqR += dr * dr;
+            sqG += dg * dg;
+            sqB += db * db;
+            maxR = Math.max(maxR, dr);
+            maxG = Math.max(maxG, dg);
+            maxB = Math.max(maxB, db);
+        }
+        out[SUM] += absR;
+        out[SUM + 1] += absG;
+        out[SUM + 2] += absB;
+        out[SQUARES] += sqR;
+        out[SQUARES + 1] += sqG;
+        out[SQUARES + 2] += sqB;
+        out[MAX] = Math.max(out[MAX], maxR);
+        out[MAX + 1] = Math.max(out[MAX + 1], maxG);
+        out[MAX + 2] = Math.max(out[MAX + 2], maxB);
+    }
+
+    // data[from .. to) = rgb. Arrays.fill is already a vectorized JIT intrinsic, so both
+    // versions use it.
+    public void fill(int[] data, int from, int to, int rgb) {
+        Arrays.fill(data, from, to, rgb);
+    }
+}
@@ -1,31 +1,27 @@
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 
 public class PixeltoImageConverter {
-    private int[][][] pixelData;
+    private PixelBuffer pixelBuffer;
     private int width;
     private int height;
 
     public PixeltoImageConverter(int[][][] pixelData) {
-        this.pixelData = pixelData;
-        this.width = pixelData.length;
-        this.height = pixelData[0].length;
+        this(PixelBuffer.fromArray(pixelData));
     }
 
-    public void saveImage(String outputImagePath, String format) {
-        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    public PixeltoImageConverter(PixelBuffer pixelBuffer) {
+        this.pixelBuffer = pixelBuffer;
+        this.width = pixelBuffer.getWidth();
+        this.height = pixelBuffer.getHeight();
+    }
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int red = pixelData[x][y][0];
-                int green = pixelData[x][y][1];
-                int blue = pixelData[x][y][2];
-                int rgb = (red << 16) | (green << 8) | blue; // Create an RGB color from the components
-                outputImage.setRGB(x, y, rgb);
-            }
-        }
+    public void saveImage(String outputImagePath, String format) {
+        BufferedImage outputImage = toBufferedImage(pixelBuffer, BufferedImage.TYPE_INT_RGB);
 
         try {
             ImageIO.write(outputImage, format, new File(outputImagePath));
@@ -34,6 +30,38 @@ public class PixeltoImageConverter {
         }
     }
 
+    // Writes the pixels straight into the new image's DataBuffer, row by row.
+    // imageType is TYPE_INT_RGB or TYPE_3BYTE_BGR.
+    public static BufferedImage toBufferedImage(PixelBuffer pixels, int imageType) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int stride = pixels.getStride();
+        int[] source = pixels.getData();
+        BufferedImage image = new BufferedImage(width, height, imageType);
+
+        if (imageType == BufferedImage.TYPE_INT_RGB) {
+            int[] target = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(source, y * stride, target, y * width, width);
+            }
+        } else if (imageType == BufferedImage.TYPE_3BYTE_BGR) {
+            byte[] target = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int out = 0;
+            for (int y = 0; y < height; y++) {
+                int in = y * stride;
+                for (int x = 0; x < width; x++) {
+                    int rgb = source[in + x];
+                    target[out++] = (byte) rgb;
+                    target[out++] = (byte) (rgb >> 8);
+                    target[out++] = (byte) (rgb >> 16);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported image type " + imageType);
+        }
+        return image;
+    }
+
     public static void main(String[] args) {
         // Example usage:
         int width = 100;
@@ -0,0 +1,295 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Breadth-first QuadTree file format: the tree is written one level at a time, so a reader
+// can show the image after each level instead of waiting for the whole file.
+//
+//   magic "QTP", version byte
+//   int width, int height, int rootSize
+//   int nodeCount, int levelCount
+//   per level, from the root down, for its n nodes:
+//     colors: n * 3 bytes (R, G, B), the node's average color whether it is split or not
+//     splits: n bits, 1 = split, padded to a whole byte
+//
+// The nodes of level d + 1 are the children (nw, ne, sw, se, those inside the image) of the
+// split nodes of level d, in order, so their count and positions follow from the level
+// before. The first level is the root alone. After level d every pixel has the color of
+// the node of depth at most d that covers it: a (rootSize >> d) block preview that ends as
+// the same image QuadTreeFormat decodes. The colors of the split nodes make the file
+// larger than the compact one by 3 bytes per split node.
+public class ProgressiveQuadTreeFormat {
+
+    public static final byte[] MAGIC = { 'Q', 'T', 'P' };
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 4 + 5 * 4;
+
+    private static final int COLOR_CHANNELS = 3;
+
+    // Called after each level with the image refined so far; the buffer is reused, so copy
+    // it to keep it past the call
+    public interface LevelConsumer {
+        void accept(int level, PixelBuffer image) throws IOException;
+    }
+
+    // True if the buffer starts with the progressive format magic (any version)
+    public static boolean isProgressive(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length + 1) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(start + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void write(FlatQuadTree tree, OutputStream out) throws IOException {
+        // Node ids and corners of the current level, and of the next one as it is collected
+        int[] ids = { 0 };
+        int[] xs = { 0 };
+        int[] ys = { 0 };
+        int count = 1;
+        int[] nextIds = new int[4];
+        int[] nextXs = new int[4];
+        int[] nextYs = new int[4];
+
+        ByteArrayOutputStream levels = new ByteArrayOutputStream(tree.nodeCount * COLOR_CHANNELS + tree.nodeCount / 8 + 64);
+        int levelCount = 0;
+        for (int size = tree.rootSize; count > 0; size >>= 1) {
+            byte[] level = new byte[count * COLOR_CHANNELS + ((count + 7) >>> 3)];
+            int splitPosition = count * COLOR_CHANNELS;
+            int nextCount = 0;
+            int halfSize = size >> 1;
+            for (int i = 0, colorPosition = 0; i < count; i++) {
+                int id = ids[i];
+                int rgb = tree.color[id];
+                level[colorPosition++] = (byte) (rgb >> 16);
+                level[colorPosition++] = (byte) (rgb >> 8);
+                level[colorPosition++] = (byte) rgb;
+                int child = tree.firstChild[id];
+                if (child == FlatQuadTree.LEAF) {
+                    continue;
+                }
+                level[splitPosition + (i >>> 3)] |= 0x80 >>> (i & 7);
+                if (nextCount + 4 > nextIds.length) {
+                    nextIds = Arrays.copyOf(nextIds, nextIds.length << 1);
+                    nextXs = Arrays.copyOf(nextXs, nextIds.length);
+                    nextYs = Arrays.copyOf(nextYs, nextIds.length);
+                }
+                for (int quadrant = 0; quadrant < 4; quadrant++) {
+                    int childX = xs[i] + ((quadrant & 1) == 0 ? 0 : halfSize);
+                    int childY = ys[i] + ((quadrant & 2) == 0 ? 0 : halfSize);
+                    if (childX < tree.width && childY < tree.height) {
+                        nextIds[nextCount] = child++;
+                        nextXs[nextCount] = childX;
+                        nextYs[nextCount] = childY;
+                        nextCount++;
+                    }
+                }
+            }
+            levels.write(level);
+            levelCount++;
+
+            int[] swap = ids;
+            ids = nextIds;
+            nextIds = swap;
+            swap = xs;
+            xs = nextXs;
+            nextXs = swap;
+            swap = ys;
+            ys = nextYs;
+            nextYs = swap;
+            if (nextIds.length < ids.length) {
+                nextIds = new int[ids.length];
+                nextXs = new int[ids.length];
+                nextYs = new int[ids.length];
+            }
+            count = nextCount;
+        }
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeInt(tree.width);
+        dos.writeInt(tree.height);
+        dos.writeInt(tree.rootSize);
+        dos.writeInt(tree.nodeCount);
+        dos.writeInt(levelCount);
+        levels.writeTo(dos);
+        dos.flush();
+    }
+
+    // Whole image from a file already in memory
+    public static PixelBuffer read(ByteBuffer buffer) throws IOException {
+        return read(buffer, null);
+    }
+
+    // Same, into a buffer from the context when it is not null
+    public static PixelBuffer read(ByteBuffer buffer, CodecContext context) throws IOException {
+        Decoder decoder = new Decoder(MappedFile.asStream(buffer), context, false);
+        while (decoder.readLevel()) {
+            // every level refines the image in place
+        }
+        if (!decoder.isComplete()) {
+            throw new IOException("Truncated progressive QuadTree file");
+        }
+        return decoder.getImage();
+    }
+
+    // Reads a stream as it arrives and hands the image to the consumer after every level.
+    // A stream that ends early, such as a download that stopped, still gives the image of
+    // the last whole level; isComplete() tells the two apart.
+    public static Decoder read(InputStream in, LevelConsumer consumer) throws IOException {
+        Decoder decoder = new Decoder(in, null);
+        try {
+            while (decoder.readLevel()) {
+                consumer.accept(decoder.getLevel(), decoder.getImage());
+            }
+        } catch (EOFException e) {
+            // keep the levels read so far
+        }
+        return decoder;
+    }
+
+    // Decodes one level per readLevel() call, painting each node's block with its color.
+    // Blocks of leaves from earlier levels are final and are not painted again; a decoder
+    // that only wants the last image skips split nodes too, since their children cover them.
+    public static class Decoder {
+        private final DataInputStream in;
+        private final int width;
+        private final int height;
+        private final int rootSize;
+        private final int levelCount;
+        private final PixelBuffer image;
+
+        // Corners of the nodes of the level to read next
+        private int[] xs = { 0 };
+        private int[] ys = { 0 };
+        private int count = 1;
+        private int[] nextXs = new int[4];
+        private int[] nextYs = new int[4];
+        private byte[] level = new byte[64];
+        private int levelsRead;
+        private int size;
+        private final boolean previews;
+
+        public Decoder(InputStream in) throws IOException {
+            this(in, null);
+        }
+
+        // Reads the header; the image comes from the context when it is not null
+        public Decoder(InputStream in, CodecContext context) throws IOException {
+            this(in, context, true);
+        }
+
+        private Decoder(InputStream in, CodecContext context, boolean previews) throws IOException {
+            this.previews = previews;
+            this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a progressive QuadTree file");
+            }
+            int version = this.in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported progressive QuadTree version " + version);
+            }
+            this.width = this.in.readInt();
+            this.height = this.in.readInt();
+            this.rootSize = this.in.readInt();
+            this.in.readInt(); // node count
+            this.levelCount = this.in.readInt();
+            if (width <= 0 || height <= 0 || rootSize < Math.max(width, height) || levelCount < 1) {
+                throw new IOException("Corrupt progressive QuadTree file");
+            }
+            this.image = CodecContext.pixelBuffer(context, width, height);
+            this.size = rootSize;
+        }
+
+        // Reads and paints the next level; false once every level has been read. Blocks until
+        // the level has arrived; throws EOFException if the stream ends inside it.
+        public boolean readLevel() throws IOException {
+            if (count == 0) {
+                return false;
+            }
+            int splitBytes = (count + 7) >>> 3;
+            int length = count * COLOR_CHANNELS + splitBytes;
+            if (level.length < length) {
+                level = new byte[Math.max(length, level.length << 1)];
+            }
+            in.readFully(level, 0, length);
+
+            int halfSize = size >> 1;
+            int nextCount = 0;
+            if (nextXs.length < 4 * count) {
+                nextXs = new int[4 * count];
+                nextYs = new int[4 * count];
+            }
+            for (int i = 0, colorPosition = 0, splitPosition = count * COLOR_CHANNELS; i < count; i++) {
+                int rgb = PixelBuffer.pack(level[colorPosition] & 0xFF, level[colorPosition + 1] & 0xFF,
+                        level[colorPosition + 2] & 0xFF);
+                colorPosition += COLOR_CHANNELS;
+                boolean split = (level[splitPosition + (i >>> 3)] & (0x80 >>> (i & 7))) != 0;
+                if (previews || !split) {
+                    image.fill(xs[i], ys[i], size, size, rgb);
+                }
+                if (!split) {
+                    continue;
+                }
+                if (size <= 1) {
+                    throw new IOException("Corrupt progressive QuadTree file");
+                }
+                for (int quadrant = 0; quadrant < 4; quadrant++) {
+                    int childX = xs[i] + ((quadrant & 1) == 0 ? 0 : halfSize);
+                    int childY = ys[i] + ((quadrant & 2) == 0 ? 0 : halfSize);
+                    if (childX < width && childY < height) {
+                        nextXs[nextCount] = childX;
+                        nextYs[nextCount] = childY;
+                        nextCount++;
+                    }
+                }
+            }
+
+            int[] swap = xs;
+            xs = nextXs;
+            nextXs = swap;
+            swap = ys;
+            ys = nextYs;
+            nextYs = swap;
+            count = nextCount;
+            size = halfSize;
+            levelsRead++;
+            return true;
+        }
+
+        // Levels painted so far, 0 before the first; also the depth of the last one plus one
+        public int getLevel() {
+            return levelsRead;
+        }
+
+        public int getLevelCount() {
+            return levelCount;
+        }
+
+        // True once the last level has been read
+        public boolean isComplete() {
+            return count == 0;
+        }
+
+        // Refined in place by every level
+        public PixelBuffer getImage() {
+            return image;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.Serializable;
+
+class QuadNode implements Serializable {
+    // Pinned to the value of the original class so old .bin files still deserialize
+    private static final long serialVersionUID = -7638125000846339687L;
+
+    int x, y, size;
+    int[] color; // [R, G, B]
+    QuadNode nw, ne, sw, se;
+
+    public QuadNode(int x, int y, int size, int[] color) {
+        this.x = x;
+        this.y = y;
+        this.size = size;
+        this.color = color;
+        this.nw = null;
+        this.ne = null;
+        this.sw = null;
+        this.se = null;
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.Serializable;
+
+class QuadTree implements Serializable {
+    // Pinned to the value of the original class so old .bin files still deserialize
+    private static final long serialVersionUID = -2643142027798705552L;
+
+    QuadNode root;
+
+    // You can tune this threshold
+    public static final double VARIANCE_THRESHOLD = 100;
+
+    // Rough heap cost of one QuadNode (header, 3 ints, 5 references) plus its int[3] color,
+    // on a 64-bit JVM with compressed oops
+    static final int NODE_HEAP_BYTES = 48 + 32;
+
+    public QuadTree(int[][][] image, int x, int y, int size) {
+        this.root = build(image, x, y, size);
+    }
+
+    // Builds the same tree, but reads node statistics from precomputed integral images
+    public QuadTree(SummedAreaTable table, int x, int y, int size) {
+        this.root = build(table, x, y, size, VARIANCE_THRESHOLD);
+    }
+
+    // Side of the root square: the smallest power of two that covers the whole image. Halving
+    // it always gives whole quadrants, so every pixel falls in exactly one leaf; quadrants
+    // that start outside the image are never built.
+    public static int rootSize(int width, int height) {
+        int side = Math.max(width, height);
+        return side <= 1 ? 1 : Integer.highestOneBit(side - 1) << 1;
+    }
+
+    // Wraps a tree that was built elsewhere, e.g. by ParallelQuadTreeBuilder
+    QuadTree(QuadNode root) {
+        this.root = root;
+    }
+
+    // Recursive function to build the QuadTree
+    private QuadNode build(int[][][] image, int x, int y, int size) {
+        if (x >= image.length || y >= image[0].length) {
+            return null; // Boundary case
+        }
+
+        int[] avgColor = calculateAverageColor(image, x, y, size);
+        double variance = calculateVariance(image, x, y, size, avgColor);
+
+        QuadNode node = new QuadNode(x, y, size, avgColor);
+
+        if (size > 1 && variance > VARIANCE_THRESHOLD) {
+            int halfSize = size >> 1; // using bitwise operation for efficiency
+            node.nw = build(image, x, y, halfSize);
+            node.ne = build(image, x + halfSize, y, halfSize);
+            node.sw = build(image, x, y + halfSize, halfSize);
+            node.se = build(image, x + halfSize, y + halfSize, halfSize);
+        }
+
+        return node;
+    }
+
+    // Same recursion as above with O(1) average color and variance per node; nodes whose
+    // variance is above 'threshold' are split
+    static QuadNode build(SummedAreaTable table, int x, int y, int size, double threshold) {
+        if (x >= table.getWidth() || y >= table.getHeight()) {
+            return null; // Boundary case
+        }
+
+        int[] avgColor = table.averageColor(x, y, size);
+        double variance = table.variance(x, y, size, avgColor);
+
+        QuadNode node = new QuadNode(x, y, size, avgColor);
+
+        if (size > 1 && variance > threshold) {
+            int halfSize = size >> 1;
+            node.nw = build(table, x, y, halfSize, threshold);
+            node.ne = build(table, x + halfSize, y, halfSize, threshold);
+            node.sw = build(table, x, y + halfSize, halfSize, threshold);
+            node.se = build(table, x + halfSize, y + halfSize, halfSize, threshold);
+        }
+
+        return node;
+    }
+
+    public int countNodes() {
+        return countNodes(root);
+    }
+
+    private int countNodes(QuadNode node) {
+        if (node == null) {
+            return 0;
+        }
+        return 1 + countNodes(node.nw) + countNodes(node.ne) + countNodes(node.sw) + countNodes(node.se);
+    }
+
+    public int countLeaves() {
+        return countLeaves(root);
+    }
+
+    private int countLeaves(QuadNode node) {
+        if (node == null) {
+            return 0;
+        }
+        if (node.nw == null && node.ne == null && node.sw == null && node.se == null) {
+            return 1;
+        }
+        return countLeaves(node.nw) + countLeaves(node.ne) + countLeaves(node.sw) + countLeaves(node.se);
+    }
+
+    // Levels below the root; 0 for a tree that is a single leaf
+    public int getDepth() {
+        return depth(root);
+    }
+
+    private int depth(QuadNode node) {
+        if (node == null || (node.nw == null && node.ne == null && node.sw == null && node.se == null)) {
+            return 0;
+        }
+        return 1 + Math.max(Math.max(depth(node.nw), depth(node.ne)), Math.max(depth(node.sw), depth(node.se)));
+    }
+
+    public long estimateHeapBytes() {
+        return (long) countNodes() * NODE_HEAP_BYTES;
+    }
+
+    private double calculateVariance(int[][][] image, int x, int y, int size, int[] avgColor) {
+        double varR = 0.0, varG = 0.0, varB = 0.0;
+        int count = 0;
+
+        for (int i = x; i < x + size && i < image.length; i++) {
+            for (int j = y; j < y + size && j < image[0].length; j++) {
+                varR += Math.pow(image[i][j][0] - avgColor[0], 2);
+                varG += Math.pow(image[i][j][1] - avgColor[1], 2);
+                varB += Math.pow(image[i][j][2] - avgColor[2], 2);
+                count++;
+            }
+        }
+
+        // Calculate average variance across the color channels
+        double avgVariance = (varR + varG + varB) / (3 * count);
+
+        return avgVariance;
+    }
+
+    private int[] calculateAverageColor(int[][][] image, int x, int y, int size) {
+        double totalR = 0, totalG = 0, totalB = 0;
+        int count = 0;
+
+        for (int i = x; i < x + size && i < image.length; i++) {
+            for (int j = y; j < y + size && j < image[0].length; j++) {
+                totalR += image[i][j][0];
+                totalG += image[i][j][1];
+                totalB += image[i][j][2];
+                count++;
+            }
+        }
+
+        return new int[] { (int) Math.round(totalR / count), (int) Math.round(totalG / count),
+                (int) Math.round(totalB / count) };
+    }
+
+}
@@ -0,0 +1,1014 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Compact, versioned file format for a QuadTree.
+//
+//   magic "QTC", version byte
+//   int width, int height, int rootSize
+//   int nodeCount, int leafCount
+//   subtree index (version 2):
+//     int cellSize
+//     per cellSize square of the image, row by row, 8 ints: the node and leaf count of the
+//     subtree rooted at that square (0 when a larger leaf covers it), then the sums and
+//     the sums of squares of its red, green and blue values
+//   structure: nodeCount bits in pre-order (nw, ne, sw, se), 1 = split, 0 = leaf
+//   colors:    leafCount * 3 bytes (R, G, B) in the same pre-order
+//
+// Coordinates and sizes are not stored: they follow from the root size and the position
+// in the tree. Children that fall outside the image are never built, so they are
+// skipped on both sides without a bit.
+//
+// The index lets a reader move past a cell's subtree in one step, a cell's structure bits
+// and colors being contiguous, and gives the average color of any block of whole cells
+// without reading its leaves. Files written without one are version 1 files.
+public class QuadTreeFormat {
+
+    public static final byte[] MAGIC = { 'Q', 'T', 'C' };
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 4 + 5 * 4;
+
+    // Side of the squares the index describes; 64 * 64 * 255 * 255 still fits in an int
+    public static final int INDEX_CELL_SIZE = 64;
+    private static final int INDEX_ENTRY_INTS = 8;
+
+    private static final int COLOR_CHANNELS = 3;
+
+    // read(buffer, pool) decodes the subtrees this many levels below the root as separate
+    // tasks: up to 64, enough to keep a pool busy when their sizes differ
+    private static final int PARALLEL_DEPTH = 3;
+
+    // True if the buffer starts with the compact format magic (any version)
+    public static boolean isCompact(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length + 1) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(start + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Version 1 file, without an index
+    public static void write(QuadTree quadTree, int width, int height, int rootSize, OutputStream out)
+            throws IOException {
+        write(quadTree, width, height, rootSize, null, out);
+    }
+
+    // With the subtree index of the pixels the tree was built from when they are not null
+    public static void write(QuadTree quadTree, int width, int height, int rootSize, PixelBuffer pixels,
+            OutputStream out) throws IOException {
+        SubtreeIndex index = pixels == null ? null : SubtreeIndex.of(pixels, rootSize);
+        BitWriter structure = new BitWriter();
+        ByteArrayOutputStream colors = new ByteArrayOutputStream();
+        int[] counts = new int[2]; // nodes, leaves
+        writeNode(quadTree.root, structure, colors, counts, index);
+        writeFile(width, height, rootSize, counts[0], counts[1], index, structure, colors, out);
+    }
+
+    // Version 1 file, without an index
+    public static void write(FlatQuadTree tree, OutputStream out) throws IOException {
+        write(tree, null, out);
+    }
+
+    public static void write(FlatQuadTree tree, PixelBuffer pixels, OutputStream out) throws IOException {
+        SubtreeIndex index = pixels == null ? null : SubtreeIndex.of(pixels, tree.rootSize);
+        BitWriter structure = new BitWriter((tree.nodeCount + 7) >>> 3);
+        ByteArrayOutputStream colors = new ByteArrayOutputStream(tree.leafCount * COLOR_CHANNELS);
+        writeNode(tree, 0, 0, 0, tree.rootSize, structure, colors, index);
+        writeFile(tree.width, tree.height, tree.rootSize, tree.nodeCount, tree.leafCount, index, structure, colors,
+                out);
+    }
+
+    // Bytes the index adds to the file of a width x height image
+    public static long indexBytes(int width, int height) {
+        int cellSize = Math.min(INDEX_CELL_SIZE, QuadTree.rootSize(width, height));
+        return 4 + 4L * INDEX_ENTRY_INTS * levelSize(width, cellSize) * levelSize(height, cellSize);
+    }
+
+    private static void writeFile(int width, int height, int rootSize, int nodeCount, int leafCount,
+            SubtreeIndex index, BitWriter structure, ByteArrayOutputStream colors, OutputStream out)
+            throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(MAGIC);
+        dos.writeByte(index == null ? 1 : VERSION);
+        dos.writeInt(width);
+        dos.writeInt(height);
+        dos.writeInt(rootSize);
+        dos.writeInt(nodeCount);
+        dos.writeInt(leafCount);
+        if (index != null) {
+            index.write(dos);
+        }
+        dos.write(structure.toByteArray());
+        colors.writeTo(dos);
+        dos.flush();
+    }
+
+    private static void writeNode(FlatQuadTree tree, int id, int x, int y, int size, BitWriter structure,
+            ByteArrayOutputStream colors, SubtreeIndex index) {
+        if (index != null && size == index.cellSize) {
+            long structureStart = structure.getBitLength();
+            int colorStart = colors.size();
+            writeNode(tree, id, x, y, size, structure, colors, null);
+            index.setCounts(index.cell(x, y), (int) (structure.getBitLength() - structureStart),
+                    (colors.size() - colorStart) / COLOR_CHANNELS);
+            return;
+        }
+        if (tree.firstChild[id] == FlatQuadTree.LEAF) {
+            structure.writeBit(0);
+            colors.write(tree.color[id] >> 16);
+            colors.write(tree.color[id] >> 8);
+            colors.write(tree.color[id]);
+            return;
+        }
+
+        structure.writeBit(1);
+        int halfSize = size >> 1;
+        int child = tree.firstChild[id];
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+            int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+            if (childX < tree.width && childY < tree.height) {
+                writeNode(tree, child++, childX, childY, halfSize, structure, colors, index);
+            }
+        }
+    }
+
+    private static void writeNode(QuadNode node, BitWriter structure, ByteArrayOutputStream colors, int[] counts,
+            SubtreeIndex index) {
+        if (node == null) {
+            return; // Outside the image, implied by the position
+        }
+        if (index != null && node.size == index.cellSize) {
+            int nodes = counts[0];
+            int leaves = counts[1];
+            writeNode(node, structure, colors, counts, null);
+            index.setCounts(index.cell(node.x, node.y), counts[0] - nodes, counts[1] - leaves);
+            return;
+        }
+        counts[0]++;
+
+        if (node.nw == null && node.ne == null && node.sw == null && node.se == null) {
+            structure.writeBit(0);
+            colors.write(node.color[0]);
+            colors.write(node.color[1]);
+            colors.write(node.color[2]);
+            counts[1]++;
+            return;
+        }
+
+        structure.writeBit(1);
+        writeNode(node.nw, structure, colors, counts, index);
+        writeNode(node.ne, structure, colors, counts, index);
+        writeNode(node.sw, structure, colors, counts, index);
+        writeNode(node.se, structure, colors, counts, index);
+    }
+
+    // Decodes straight into the pixel array; no QuadNode is allocated
+    public static PixelBuffer read(ByteBuffer buffer) throws IOException {
+        return read(buffer, (CodecContext) null);
+    }
+
+    // Same, into a buffer from the context when it is not null
+    public static PixelBuffer read(ByteBuffer buffer, CodecContext context) throws IOException {
+        int start = checkHeader(buffer);
+        int width = buffer.getInt(start + 4);
+        int height = buffer.getInt(start + 8);
+        int rootSize = buffer.getInt(start + 12);
+
+        PixelBuffer pixels = CodecContext.pixelBuffer(context, width, height);
+        Decoder decoder = new Decoder(buffer, pixels);
+        try {
+            decoder.decode(0, 0, rootSize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compact QuadTree file", e);
+        }
+        return pixels;
+    }
+
+    // Same result as read(buffer), with the subtrees PARALLEL_DEPTH levels down decoded on the
+    // pool. One pass over the structure bits above them finds where each subtree's bits and
+    // colors start; their leaves never overlap, so the tasks fill the shared buffer as is.
+    public static PixelBuffer read(ByteBuffer buffer, ForkJoinPool pool) throws IOException {
+        return read(buffer, pool, null);
+    }
+
+    public static PixelBuffer read(ByteBuffer buffer, ForkJoinPool pool, CodecContext context) throws IOException {
+        int start = checkHeader(buffer);
+        int width = buffer.getInt(start + 4);
+        int height = buffer.getInt(start + 8);
+        int rootSize = buffer.getInt(start + 12);
+
+        PixelBuffer pixels = CodecContext.pixelBuffer(context, width, height);
+        SubtreeFinder finder = new SubtreeFinder(buffer, pixels);
+        try {
+            finder.find(0, 0, rootSize, 0);
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(finder.subtrees);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compact QuadTree file", e);
+        }
+        return pixels;
+    }
+
+    // Decodes only the pixels inside the rectangle into a regionWidth x regionHeight buffer.
+    // Subtrees that miss the rectangle are skipped by scanning their structure bits down to
+    // the index cells, which are jumped over whole; none of their colors are read and none
+    // of their pixels are filled.
+    public static PixelBuffer readRegion(ByteBuffer buffer, int regionX, int regionY, int regionWidth,
+            int regionHeight) throws IOException {
+        int start = checkHeader(buffer);
+        int rootSize = buffer.getInt(start + 12);
+        PixelBuffer region = new PixelBuffer(regionWidth, regionHeight);
+        RegionDecoder decoder = new RegionDecoder(buffer, buffer.getInt(start + 4), buffer.getInt(start + 8),
+                region, regionX, regionY);
+        try {
+            decoder.decode(0, 0, rootSize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compact QuadTree file", e);
+        }
+        return region;
+    }
+
+    // Low-resolution preview that stops at the given depth below the root: one output pixel
+    // per (rootSize >> depth) square block, no full-size pixels are filled. A preview pixel
+    // is defined as the rounded average of the source image over its block. A block that is
+    // still split at that depth takes it from the index when it is made of whole cells;
+    // otherwise (finer blocks, files without the index) it is approximated by the
+    // area-weighted average of the block's leaves. Every leaf color is the rounded average of
+    // the source pixels it covers, so the approximation is off by at most one per channel.
+    public static PixelBuffer readAtLevel(ByteBuffer buffer, int depth) throws IOException {
+        int start = checkHeader(buffer);
+        int rootSize = buffer.getInt(start + 12);
+        int blockSize = Math.max(1, rootSize >> depth);
+        int width = buffer.getInt(start + 4);
+        int height = buffer.getInt(start + 8);
+        PixelBuffer preview = new PixelBuffer(levelSize(width, blockSize), levelSize(height, blockSize));
+        LevelDecoder decoder = new LevelDecoder(buffer, width, height, preview, blockSize);
+        try {
+            decoder.decode(0, 0, rootSize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compact QuadTree file", e);
+        }
+        return preview;
+    }
+
+    // Output pixels along one side of a preview made of blockSize blocks
+    static int levelSize(int size, int blockSize) {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    // True for files with the subtree index, the ones rewrite() accepts
+    public static boolean hasSubtreeIndex(ByteBuffer buffer) {
+        return isCompact(buffer) && buffer.get(buffer.position() + MAGIC.length) == VERSION;
+    }
+
+    // Writes the file for an image that differs from the one 'previous' was written from only
+    // inside the dirty rectangle, given the new pixels and the threshold the old file was
+    // written with; the result is the file a full write would give. 'previous' needs the
+    // subtree index. Subtrees that miss the rectangle are unchanged: their structure bits
+    // and colors are copied in bulk, jumping over them cell by cell through the index. Only
+    // nodes that touch the rectangle, and the children of nodes that split only now, are
+    // decided again: above the index cells from the cell totals, which are measured again
+    // for the cells the rectangle touches, and inside a cell from a table of that cell
+    // alone. Apart from copying the unchanged bytes, the cost grows with the number of cells
+    // the rectangle touches rather than with the image.
+    public static void rewrite(ByteBuffer previous, PixelBuffer pixels, double threshold, int dirtyX, int dirtyY,
+            int dirtyWidth, int dirtyHeight, OutputStream out) throws IOException {
+        int start = checkHeader(previous);
+        int width = previous.getInt(start + 4);
+        int height = previous.getInt(start + 8);
+        int rootSize = previous.getInt(start + 12);
+        if (width != pixels.getWidth() || height != pixels.getHeight()) {
+            throw new IllegalArgumentException("Image is " + pixels.getWidth() + "x" + pixels.getHeight()
+                    + ", the previous file " + width + "x" + height);
+        }
+        if (!hasSubtreeIndex(previous)) {
+            throw new IOException("The previous file has no subtree index");
+        }
+        Rewriter rewriter = new Rewriter(previous, pixels, threshold, dirtyX, dirtyY, dirtyWidth, dirtyHeight);
+        try {
+            rewriter.rewrite(0, 0, rootSize, true);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compact QuadTree file", e);
+        }
+        writeFile(width, height, rootSize, rewriter.nodeCount, rewriter.leafCount, rewriter.newIndex,
+                rewriter.output, rewriter.colors, out);
+    }
+
+    public static FlatQuadTree readFlat(ByteBuffer buffer) throws IOException {
+        return readFlat(buffer, null);
+    }
+
+    // Node arrays borrowed from the context when it is not null; give them back with recycle()
+    public static FlatQuadTree readFlat(ByteBuffer buffer, CodecContext context) throws IOException {
+        int start = checkHeader(buffer);
+        int nodeCount = buffer.getInt(start + 16);
+        FlatQuadTree tree = new FlatQuadTree(buffer.getInt(start + 4), buffer.getInt(start + 8),
+                buffer.getInt(start + 12), nodeCount, context);
+
+        BitReader structure = new BitReader(buffer, structureOffset(buffer));
+        int[] colorPosition = { colorOffset(buffer) };
+        int colorEnd = colorPosition[0] + buffer.getInt(start + 20) * COLOR_CHANNELS;
+        tree.allocate(1);
+        readNode(tree, 0, 0, 0, tree.rootSize, structure, nodeCount, buffer, colorPosition, colorEnd);
+        if (tree.nodeCount != nodeCount) {
+            throw new IOException("Corrupt compact QuadTree file");
+        }
+        return tree;
+    }
+
+    // Stops at the first bit past nodeCount and the first color past colorEnd
+    private static void readNode(FlatQuadTree tree, int id, int x, int y, int size, BitReader structure,
+            int nodeCount, ByteBuffer buffer, int[] colorPosition, int colorEnd) throws IOException {
+        if (structure.getBitPosition() >= nodeCount) {
+            throw new IOException("Corrupt compact QuadTree file");
+        }
+        if (structure.readBit() == 0) {
+            int position = colorPosition[0];
+            if (position + COLOR_CHANNELS > colorEnd) {
+                throw new IOException("Corrupt compact QuadTree file");
+            }
+            tree.color[id] = ((buffer.get(position) & 0xFF) << 16) | ((buffer.get(position + 1) & 0xFF) << 8)
+                    | (buffer.get(position + 2) & 0xFF);
+            colorPosition[0] = position + COLOR_CHANNELS;
+            tree.firstChild[id] = FlatQuadTree.LEAF;
+            tree.leafCount++;
+            return;
+        }
+
+        if (size <= 1) {
+            throw new IOException("Corrupt compact QuadTree file");
+        }
+        int halfSize = size >> 1;
+        int child = tree.allocate(tree.childCount(x, y, halfSize));
+        tree.firstChild[id] = child;
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+            int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+            if (childX < tree.width && childY < tree.height) {
+                readNode(tree, child++, childX, childY, halfSize, structure, nodeCount, buffer, colorPosition,
+                        colorEnd);
+            }
+        }
+    }
+
+    // Validates magic, version and length; returns the start of the header
+    private static int checkHeader(ByteBuffer buffer) throws IOException {
+        if (!isCompact(buffer)) {
+            throw new IOException("Not a compact QuadTree file");
+        }
+        int start = buffer.position();
+        int version = buffer.get(start + MAGIC.length);
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported compact QuadTree version " + version);
+        }
+
+        if (buffer.remaining() < HEADER_BYTES + (version == 1 ? 0 : 4)) {
+            throw new IOException("Truncated compact QuadTree file");
+        }
+        if (version != 1) {
+            int cellSize = buffer.getInt(start + HEADER_BYTES);
+            if (cellSize < 1 || Integer.bitCount(cellSize) != 1 || cellSize > buffer.getInt(start + 12)) {
+                throw new IOException("Corrupt compact QuadTree file");
+            }
+        }
+        int leafCount = buffer.getInt(start + 20);
+        if ((long) structureOffset(buffer) + ((buffer.getInt(start + 16) + 7L) >>> 3)
+                + (long) leafCount * COLOR_CHANNELS > buffer.limit()) {
+            throw new IOException("Truncated compact QuadTree file");
+        }
+        return start;
+    }
+
+    private static int structureOffset(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.get(start + MAGIC.length) == 1) {
+            return start + HEADER_BYTES;
+        }
+        int cellSize = buffer.getInt(start + HEADER_BYTES);
+        long cells = (long) levelSize(buffer.getInt(start + 4), cellSize) * levelSize(buffer.getInt(start + 8), cellSize);
+        return (int) Math.min(Integer.MAX_VALUE, start + HEADER_BYTES + 4 + 4 * INDEX_ENTRY_INTS * cells);
+    }
+
+    private static int colorOffset(ByteBuffer buffer) {
+        int nodeCount = buffer.getInt(buffer.position() + 16);
+        return structureOffset(buffer) + (int) ((nodeCount + 7L) >>> 3);
+    }
+
+    private static class Decoder extends StreamWalker {
+        final PixelBuffer pixels;
+
+        Decoder(ByteBuffer buffer, PixelBuffer pixels) {
+            super(buffer, pixels.getWidth(), pixels.getHeight());
+            this.pixels = pixels;
+        }
+
+        // Starts bitPosition bits into the structure and at colorPosition in the colors
+        Decoder(ByteBuffer buffer, PixelBuffer pixels, long bitPosition, int colorPosition) {
+            super(buffer, pixels.getWidth(), pixels.getHeight(), bitPosition, colorPosition);
+            this.pixels = pixels;
+        }
+
+        void decode(int x, int y, int size) {
+            if (x >= width || y >= height) {
+                return;
+            }
+
+            if (!readSplit(size)) {
+                pixels.fill(x, y, size, size, readColor());
+                return;
+            }
+
+            int halfSize = size >> 1;
+            decode(x, y, halfSize);
+            decode(x + halfSize, y, halfSize);
+            decode(x, y + halfSize, halfSize);
+            decode(x + halfSize, y + halfSize, halfSize);
+        }
+    }
+
+    // Decodes the levels above PARALLEL_DEPTH and turns every subtree at that depth into a
+    // task starting at its own bit and color position
+    private static class SubtreeFinder extends Decoder {
+        final List<SubtreeTask> subtrees = new ArrayList<>();
+
+        SubtreeFinder(ByteBuffer buffer, PixelBuffer pixels) {
+            super(buffer, pixels);
+        }
+
+        void find(int x, int y, int size, int depth) {
+            if (x >= width || y >= height) {
+                return;
+            }
+            if (depth == PARALLEL_DEPTH) {
+                subtrees.add(new SubtreeTask(this, x, y, size));
+                skip(x, y, size);
+                return;
+            }
+
+            if (!readSplit(size)) {
+                pixels.fill(x, y, size, size, readColor());
+                return;
+            }
+
+            int halfSize = size >> 1;
+            find(x, y, halfSize, depth + 1);
+            find(x + halfSize, y, halfSize, depth + 1);
+            find(x, y + halfSize, halfSize, depth + 1);
+            find(x + halfSize, y + halfSize, halfSize, depth + 1);
+        }
+    }
+
+    private static class SubtreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buffer;
+        private final PixelBuffer pixels;
+        private final long bitPosition;
+        private final int colorPosition;
+        private final int x, y, size;
+
+        // Captures where the finder is now, i.e. at the start of this subtree
+        SubtreeTask(SubtreeFinder finder, int x, int y, int size) {
+            this.buffer = finder.buffer;
+            this.pixels = finder.pixels;
+            this.bitPosition = finder.structure.getBitPosition();
+            this.colorPosition = finder.colorPosition;
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        @Override
+        protected void compute() {
+            new Decoder(buffer, pixels, bitPosition, colorPosition).decode(x, y, size);
+        }
+    }
+
+    // Walks the stream without decoding: one structure bit per node, three color bytes per
+    // leaf. Subclasses decide per node whether to decode it or skip over it. A stream that
+    // asks for more bits or colors than the header declares, or splits a single pixel, is
+    // corrupt: the walk stops with an IllegalArgumentException, which the public readers
+    // turn into an IOException, as HybridQuadTreeFormat.read does.
+    private abstract static class StreamWalker {
+        final BitReader structure;
+        final ByteBuffer buffer;
+        final SubtreeIndex index; // null in version 1 files
+        final int width;
+        final int height;
+        int colorPosition;
+        private final long bitLimit; // structure bits of the file, counted from the reader's offset
+        private final int colorEnd;
+
+        StreamWalker(ByteBuffer buffer, int width, int height) {
+            this(buffer, width, height, 0, colorOffset(buffer));
+        }
+
+        StreamWalker(ByteBuffer buffer, int width, int height, long bitPosition, int colorPosition) {
+            this.structure = new BitReader(buffer, structureOffset(buffer) + (int) (bitPosition >>> 3));
+            this.structure.skipBits((int) (bitPosition & 7));
+            this.buffer = buffer;
+            this.index = SubtreeIndex.read(buffer);
+            this.colorPosition = colorPosition;
+            this.width = width;
+            this.height = height;
+            this.bitLimit = buffer.getInt(buffer.position() + 16) - 8 * (bitPosition >>> 3);
+            this.colorEnd = colorOffset(buffer) + buffer.getInt(buffer.position() + 20) * COLOR_CHANNELS;
+        }
+
+        static IllegalArgumentException corrupt() {
+            return new IllegalArgumentException("Corrupt compact QuadTree file");
+        }
+
+        // Reads the structure bit of a node of this size: true if it is split
+        boolean readSplit(int size) {
+            if (structure.getBitPosition() >= bitLimit) {
+                throw corrupt();
+            }
+            if (structure.readBit() == 0) {
+                return false;
+            }
+            if (size <= 1) {
+                throw corrupt();
+            }
+            return true;
+        }
+
+        // Moves past the colors of this many leaves
+        void skipColors(long leaves) {
+            if (leaves < 0 || colorPosition + COLOR_CHANNELS * leaves > colorEnd) {
+                throw corrupt();
+            }
+            colorPosition += (int) (COLOR_CHANNELS * leaves);
+        }
+
+        int readColor() {
+            if (colorPosition + COLOR_CHANNELS > colorEnd) {
+                throw corrupt();
+            }
+            int red = buffer.get(colorPosition++) & 0xFF;
+            int green = buffer.get(colorPosition++) & 0xFF;
+            int blue = buffer.get(colorPosition++) & 0xFF;
+            return PixelBuffer.pack(red, green, blue);
+        }
+
+        // Moves past the subtree at (x, y) reading only its structure bits, and not even
+        // those below the index cells
+        void skip(int x, int y, int size) {
+            if (x >= width || y >= height) {
+                return;
+            }
+            if (index != null && size == index.cellSize) {
+                int cell = index.cell(x, y);
+                int nodes = index.nodes(cell);
+                if (nodes < 0 || structure.getBitPosition() + nodes > bitLimit) {
+                    throw corrupt();
+                }
+                skipColors(index.leaves(cell));
+                structure.seek(structure.getBitPosition() + nodes);
+                return;
+            }
+            if (!readSplit(size)) {
+                skipColors(1);
+                return;
+            }
+            int halfSize = size >> 1;
+            skip(x, y, halfSize);
+            skip(x + halfSize, y, halfSize);
+            skip(x, y + halfSize, halfSize);
+            skip(x + halfSize, y + halfSize, halfSize);
+        }
+    }
+
+    // Walks the old stream next to the new tree for rewrite()
+    private static class Rewriter extends StreamWalker {
+        private final PixelBuffer pixels;
+        private final double threshold;
+        private final int dirtyX;
+        private final int dirtyY;
+        private final int dirtyXEnd;
+        private final int dirtyYEnd;
+        private final int[] avgColor = new int[COLOR_CHANNELS];
+        private final long[] totals = new long[2 * COLOR_CHANNELS];
+        private final byte[] copyBuffer = new byte[1 << 16];
+
+        // Table of the cell being decided again, whose corner is (cellX, cellY)
+        private final CodecContext context = new CodecContext(4L << 20);
+        private final int[] cellData;
+        private SummedAreaTable cellTable;
+        private int cellX;
+        private int cellY;
+
+        final SubtreeIndex newIndex;
+        final BitWriter output;
+        final ByteArrayOutputStream colors;
+        int nodeCount;
+        int leafCount;
+
+        Rewriter(ByteBuffer buffer, PixelBuffer pixels, double threshold, int dirtyX, int dirtyY, int dirtyWidth,
+                int dirtyHeight) {
+            super(buffer, pixels.getWidth(), pixels.getHeight());
+            this.pixels = pixels;
+            this.threshold = threshold;
+            this.dirtyX = dirtyX;
+            this.dirtyY = dirtyY;
+            this.dirtyXEnd = dirtyX + dirtyWidth;
+            this.dirtyYEnd = dirtyY + dirtyHeight;
+            this.cellData = new int[index.cellSize * index.cellSize];
+            this.newIndex = index.copy();
+            if (dirtyWidth > 0 && dirtyHeight > 0) {
+                newIndex.measure(pixels, dirtyX, dirtyY, dirtyXEnd, dirtyYEnd);
+            }
+            this.output = new BitWriter(buffer.getInt(buffer.position() + 16) / 8 + 1);
+            this.colors = new ByteArrayOutputStream(buffer.getInt(buffer.position() + 20) * COLOR_CHANNELS);
+        }
+
+        // inPrevious: the old stream has this node at its cursor. It does not when the node's
+        // parent was a leaf there.
+        void rewrite(int x, int y, int size, boolean inPrevious) {
+            if (x >= width || y >= height) {
+                return;
+            }
+            if (inPrevious && (x >= dirtyXEnd || y >= dirtyYEnd || x + size <= dirtyX || y + size <= dirtyY)) {
+                copy(x, y, size);
+                return;
+            }
+            if (size == index.cellSize) {
+                // Decided again from a table of this cell; the index gets its new counts
+                int nodes = nodeCount;
+                int leaves = leafCount;
+                cellX = x;
+                cellY = y;
+                cellTable = cellTable(x, y);
+                decide(x, y, size, inPrevious);
+                cellTable.recycle(context);
+                cellTable = null;
+                newIndex.setCounts(newIndex.cell(x, y), nodeCount - nodes, leafCount - leaves);
+                return;
+            }
+            decide(x, y, size, inPrevious);
+        }
+
+        private void decide(int x, int y, int size, boolean inPrevious) {
+            double variance;
+            if (size > index.cellSize) {
+                Arrays.fill(totals, 0);
+                newIndex.addTotals(x, y, size, totals);
+                long count = (long) (Math.min(x + size, width) - x) * (Math.min(y + size, height) - y);
+                SummedAreaTable.averageColor(totals, count, avgColor);
+                variance = SummedAreaTable.variance(totals, count, avgColor);
+            } else {
+                cellTable.averageColor(x - cellX, y - cellY, size, avgColor);
+                variance = cellTable.variance(x - cellX, y - cellY, size, avgColor);
+            }
+            boolean split = size > 1 && variance > threshold;
+            boolean previouslySplit = false;
+            if (inPrevious) {
+                previouslySplit = readSplit(size);
+                if (!previouslySplit) {
+                    skipColors(1);
+                }
+            }
+            nodeCount++;
+
+            int halfSize = size >> 1;
+            if (!split) {
+                if (previouslySplit) {
+                    skip(x, y, halfSize);
+                    skip(x + halfSize, y, halfSize);
+                    skip(x, y + halfSize, halfSize);
+                    skip(x + halfSize, y + halfSize, halfSize);
+                }
+                if (size > index.cellSize) {
+                    newIndex.clearCounts(x, y, size);
+                }
+                output.writeBit(0);
+                colors.write(avgColor[0]);
+                colors.write(avgColor[1]);
+                colors.write(avgColor[2]);
+                leafCount++;
+                return;
+            }
+
+            output.writeBit(1);
+            rewrite(x, y, halfSize, previouslySplit);
+            rewrite(x + halfSize, y, halfSize, previouslySplit);
+            rewrite(x, y + halfSize, halfSize, previouslySplit);
+            rewrite(x + halfSize, y + halfSize, halfSize, previouslySplit);
+        }
+
+        // Copies the subtree as it is: its structure bits are one contiguous run, and so are
+        // its colors
+        private void copy(int x, int y, int size) {
+            long bitStart = structure.getBitPosition();
+            int colorStart = colorPosition;
+            skip(x, y, size);
+            long bits = structure.getBitPosition() - bitStart;
+            structure.seek(bitStart);
+            output.copyBits(structure, bits);
+            copyColors(colorStart, colorPosition);
+            nodeCount += (int) bits;
+            leafCount += (colorPosition - colorStart) / COLOR_CHANNELS;
+        }
+
+        private void copyColors(int from, int to) {
+            if (buffer.hasArray()) {
+                colors.write(buffer.array(), buffer.arrayOffset() + from, to - from);
+                return;
+            }
+            while (from < to) {
+                int length = Math.min(to - from, copyBuffer.length);
+                buffer.get(from, copyBuffer, 0, length);
+                colors.write(copyBuffer, 0, length);
+                from += length;
+            }
+        }
+
+        // Table of the new pixels of the cell at (x, y), clipped to the image
+        private SummedAreaTable cellTable(int x, int y) {
+            int cellWidth = Math.min(index.cellSize, width - x);
+            int cellHeight = Math.min(index.cellSize, height - y);
+            for (int row = 0; row < cellHeight; row++) {
+                System.arraycopy(pixels.getData(), pixels.index(x, y + row), cellData, row * cellWidth, cellWidth);
+            }
+            return new SummedAreaTable(new PixelBuffer(cellWidth, cellHeight, cellData), context);
+        }
+    }
+
+    private static class RegionDecoder extends StreamWalker {
+        private final PixelBuffer region;
+        private final int regionX;
+        private final int regionY;
+        private final int regionXEnd;
+        private final int regionYEnd;
+
+        RegionDecoder(ByteBuffer buffer, int width, int height, PixelBuffer region, int regionX, int regionY) {
+            super(buffer, width, height);
+            this.region = region;
+            this.regionX = regionX;
+            this.regionY = regionY;
+            this.regionXEnd = regionX + region.getWidth();
+            this.regionYEnd = regionY + region.getHeight();
+        }
+
+        void decode(int x, int y, int size) {
+            if (x >= width || y >= height) {
+                return;
+            }
+            if (x >= regionXEnd || y >= regionYEnd || x + size <= regionX || y + size <= regionY) {
+                skip(x, y, size);
+                return;
+            }
+
+            if (!readSplit(size)) {
+                int left = Math.max(x, regionX);
+                int top = Math.max(y, regionY);
+                int right = Math.min(Math.min(x + size, width), regionXEnd);
+                int bottom = Math.min(Math.min(y + size, height), regionYEnd);
+                region.fill(left - regionX, top - regionY, right - left, bottom - top, readColor());
+                return;
+            }
+
+            int halfSize = size >> 1;
+            decode(x, y, halfSize);
+            decode(x + halfSize, y, halfSize);
+            decode(x, y + halfSize, halfSize);
+            decode(x + halfSize, y + halfSize, halfSize);
+        }
+    }
+
+    private static class LevelDecoder extends StreamWalker {
+        private final PixelBuffer preview;
+        private final int blockSize;
+        private final long[] sums = new long[COLOR_CHANNELS];
+        private final long[] totals = new long[2 * COLOR_CHANNELS];
+        private long area;
+
+        LevelDecoder(ByteBuffer buffer, int width, int height, PixelBuffer preview, int blockSize) {
+            super(buffer, width, height);
+            this.preview = preview;
+            this.blockSize = blockSize;
+        }
+
+        void decode(int x, int y, int size) {
+            if (x >= width || y >= height) {
+                return;
+            }
+
+            if (size <= blockSize) {
+                int px = Math.min(x / blockSize, preview.getWidth() - 1);
+                int py = Math.min(y / blockSize, preview.getHeight() - 1);
+                if (index != null && size >= index.cellSize) {
+                    // Whole cells: the index has the block's pixel totals, so none of its
+                    // leaves is read. Rounded like SummedAreaTable.averageColor, which is
+                    // also the color of the block when it is a leaf.
+                    Arrays.fill(totals, 0);
+                    index.addTotals(x, y, size, totals);
+                    double count = (double) (Math.min(x + size, width) - x) * (Math.min(y + size, height) - y);
+                    preview.setRGB(px, py, PixelBuffer.pack((int) Math.round(totals[0] / count),
+                            (int) Math.round(totals[1] / count), (int) Math.round(totals[2] / count)));
+                    skip(x, y, size);
+                    return;
+                }
+                // No totals for this block: approximate them from the leaves below it
+                sums[0] = sums[1] = sums[2] = 0;
+                area = 0;
+                accumulate(x, y, size);
+                if (area > 0) {
+                    preview.setRGB(px, py, PixelBuffer.pack((int) Math.round((double) sums[0] / area),
+                            (int) Math.round((double) sums[1] / area), (int) Math.round((double) sums[2] / area)));
+                }
+                return;
+            }
+
+            if (!readSplit(size)) {
+                // A leaf above the preview level covers several preview pixels
+                int left = x / blockSize;
+                int top = y / blockSize;
+                preview.fill(left, top, levelSize(Math.min(x + size, width), blockSize) - left,
+                        levelSize(Math.min(y + size, height), blockSize) - top, readColor());
+                return;
+            }
+
+            int halfSize = size >> 1;
+            decode(x, y, halfSize);
+            decode(x + halfSize, y, halfSize);
+            decode(x, y + halfSize, halfSize);
+            decode(x + halfSize, y + halfSize, halfSize);
+        }
+
+        private void accumulate(int x, int y, int size) {
+            if (x >= width || y >= height) {
+                return;
+            }
+            if (!readSplit(size)) {
+                int rgb = readColor();
+                long count = (long) (Math.min(x + size, width) - x) * (Math.min(y + size, height) - y);
+                sums[0] += ((rgb >> 16) & 0xFF) * count;
+                sums[1] += ((rgb >> 8) & 0xFF) * count;
+                sums[2] += (rgb & 0xFF) * count;
+                area += count;
+                return;
+            }
+            int halfSize = size >> 1;
+            accumulate(x, y, halfSize);
+            accumulate(x + halfSize, y, halfSize);
+            accumulate(x, y + halfSize, halfSize);
+            accumulate(x + halfSize, y + halfSize, halfSize);
+        }
+    }
+
+    // The per-cell entries of a version 2 file, or of one being written. Entries are ints in
+    // file order: nodes, leaves, then the sums and sums of squares of red, green and blue.
+    static final class SubtreeIndex {
+        final int cellSize;
+        final int columns;
+        final int rows;
+        private final IntBuffer entries;
+
+        private SubtreeIndex(int cellSize, int columns, int rows, IntBuffer entries) {
+            this.cellSize = cellSize;
+            this.columns = columns;
+            this.rows = rows;
+            this.entries = entries;
+        }
+
+        // Totals of the pixels; the counts are set while the tree is written
+        static SubtreeIndex of(PixelBuffer pixels, int rootSize) {
+            int cellSize = Math.min(INDEX_CELL_SIZE, rootSize);
+            int columns = levelSize(pixels.getWidth(), cellSize);
+            int rows = levelSize(pixels.getHeight(), cellSize);
+            SubtreeIndex index = new SubtreeIndex(cellSize, columns, rows,
+                    IntBuffer.wrap(new int[columns * rows * INDEX_ENTRY_INTS]));
+            index.measure(pixels, 0, 0, pixels.getWidth(), pixels.getHeight());
+            return index;
+        }
+
+        // A copy on the heap, with entries that can be changed
+        SubtreeIndex copy() {
+            int[] copied = new int[entries.limit()];
+            entries.get(0, copied);
+            return new SubtreeIndex(cellSize, columns, rows, IntBuffer.wrap(copied));
+        }
+
+        // Sets the totals of every cell that meets the rectangle [x0, x1) x [y0, y1) from the
+        // pixels; each cell's row spans are summed in ints before they are added
+        void measure(PixelBuffer pixels, int x0, int y0, int x1, int y1) {
+            int[] data = pixels.getData();
+            int width = pixels.getWidth();
+            int height = pixels.getHeight();
+            int columnEnd = Math.min(columns, levelSize(x1, cellSize));
+            int rowEnd = Math.min(rows, levelSize(y1, cellSize));
+            for (int row = y0 / cellSize; row < rowEnd; row++) {
+                for (int column = x0 / cellSize; column < columnEnd; column++) {
+                    int entry = (row * columns + column) * INDEX_ENTRY_INTS;
+                    for (int i = 2; i < INDEX_ENTRY_INTS; i++) {
+                        entries.put(entry + i, 0);
+                    }
+                    int xEnd = Math.min(width, (column + 1) * cellSize);
+                    for (int y = row * cellSize, yEnd = Math.min(height, y + cellSize); y < yEnd; y++) {
+                        int red = 0, green = 0, blue = 0;
+                        int squareRed = 0, squareGreen = 0, squareBlue = 0;
+                        for (int i = pixels.index(column * cellSize, y), end = pixels.index(xEnd, y); i < end; i++) {
+                            int rgb = data[i];
+                            int r = (rgb >> 16) & 0xFF;
+                            int g = (rgb >> 8) & 0xFF;
+                            int b = rgb & 0xFF;
+                            red += r;
+                            green += g;
+                            blue += b;
+                            squareRed += r * r;
+                            squareGreen += g * g;
+                            squareBlue += b * b;
+                        }
+                        entries.put(entry + 2, entries.get(entry + 2) + red);
+                        entries.put(entry + 3, entries.get(entry + 3) + green);
+                        entries.put(entry + 4, entries.get(entry + 4) + blue);
+                        entries.put(entry + 5, entries.get(entry + 5) + squareRed);
+                        entries.put(entry + 6, entries.get(entry + 6) + squareGreen);
+                        entries.put(entry + 7, entries.get(entry + 7) + squareBlue);
+                    }
+                }
+            }
+        }
+
+        // The index of a file checkHeader accepted, read in place; null for version 1
+        static SubtreeIndex read(ByteBuffer buffer) {
+            int start = buffer.position();
+            if (buffer.get(start + MAGIC.length) == 1) {
+                return null;
+            }
+            int cellSize = buffer.getInt(start + HEADER_BYTES);
+            int columns = levelSize(buffer.getInt(start + 4), cellSize);
+            int rows = levelSize(buffer.getInt(start + 8), cellSize);
+            IntBuffer entries = buffer.slice(start + HEADER_BYTES + 4, columns * rows * INDEX_ENTRY_INTS * 4)
+                    .asIntBuffer();
+            return new SubtreeIndex(cellSize, columns, rows, entries);
+        }
+
+        // Cell whose square has its corner at (x, y)
+        int cell(int x, int y) {
+            return (y / cellSize) * columns + x / cellSize;
+        }
+
+        int nodes(int cell) {
+            return entries.get(cell * INDEX_ENTRY_INTS);
+        }
+
+        int leaves(int cell) {
+            return entries.get(cell * INDEX_ENTRY_INTS + 1);
+        }
+
+        void setCounts(int cell, int nodes, int leaves) {
+            entries.put(cell * INDEX_ENTRY_INTS, nodes);
+            entries.put(cell * INDEX_ENTRY_INTS + 1, leaves);
+        }
+
+        // Zero counts for the cells in the square (x, y, size), which a leaf now covers
+        void clearCounts(int x, int y, int size) {
+            int columnEnd = Math.min(columns, (x + size) / cellSize);
+            int rowEnd = Math.min(rows, (y + size) / cellSize);
+            for (int row = y / cellSize; row < rowEnd; row++) {
+                for (int column = x / cellSize; column < columnEnd; column++) {
+                    setCounts(row * columns + column, 0, 0);
+                }
+            }
+        }
+
+        // Adds the sums and sums of squares of the cells in the square (x, y, size), which
+        // is made of whole cells, to totals[0..5]
+        void addTotals(int x, int y, int size, long[] totals) {
+            int columnEnd = Math.min(columns, (x + size) / cellSize);
+            int rowEnd = Math.min(rows, (y + size) / cellSize);
+            for (int row = y / cellSize; row < rowEnd; row++) {
+                for (int column = x / cellSize; column < columnEnd; column++) {
+                    int entry = (row * columns + column) * INDEX_ENTRY_INTS + 2;
+                    for (int i = 0; i < totals.length; i++) {
+                        totals[i] += entries.get(entry + i) & 0xFFFFFFFFL;
+                    }
+                }
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(cellSize);
+            for (int i = 0; i < entries.limit(); i++) {
+                out.writeInt(entries.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+// Computes MAE, MSE and PSNR (overall and per channel) plus the maximum error in one pass
+// over two packed pixel buffers. The overall values use the same definitions as
+// MAECalculator, MSECalculator and PSNRCalculator:
+//
+//   MAE  = sum |diff| over all channels / (pixels * 3)
+//   MSE  = sum diff^2 over all channels / pixels
+//   PSNR = 20 * log10(255 / sqrt(MSE))
+//
+// Per-channel values are divided by the pixel count only.
+public class QualityMetrics {
+
+    private static final double MAX_PIXEL_VALUE = 255.0;
+
+    // Rows per work unit in the parallel mode
+    private static final int STRIPE_ROWS = 32;
+
+    // Images with at least this many pixels are striped in compute(a, b)
+    public static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    private final long pixelCount;
+    private final long[] absoluteErrors = new long[3]; // per channel, R G B
+    private final long[] squaredErrors = new long[3];
+    private final int[] maxErrors = new int[3];
+
+    private QualityMetrics(long pixelCount) {
+        this.pixelCount = pixelCount;
+    }
+
+    // Sequential for small images, row-striped in parallel for large ones
+    public static QualityMetrics compute(PixelBuffer original, PixelBuffer decompressed) {
+        boolean parallel = (long) original.getWidth() * original.getHeight() >= PARALLEL_THRESHOLD;
+        return compute(original, decompressed, parallel);
+    }
+
+    public static QualityMetrics compute(PixelBuffer original, PixelBuffer decompressed, boolean parallel) {
+        int width = original.getWidth();
+        int height = original.getHeight();
+        if (width != decompressed.getWidth() || height != decompressed.getHeight()) {
+            throw new IllegalArgumentException("Images have different dimensions.");
+        }
+
+        if (!parallel) {
+            QualityMetrics metrics = new QualityMetrics((long) width * height);
+            metrics.accumulate(original, decompressed, 0, height);
+            return metrics;
+        }
+
+        int stripes = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        return IntStream.range(0, stripes).parallel()
+                .mapToObj(stripe -> {
+                    QualityMetrics partial = new QualityMetrics((long) width * height);
+                    int rowStart = stripe * STRIPE_ROWS;
+                    partial.accumulate(original, decompressed, rowStart, Math.min(rowStart + STRIPE_ROWS, height));
+                    return partial;
+                })
+                .reduce(QualityMetrics::merge)
+                .orElseGet(() -> new QualityMetrics((long) width * height));
+    }
+
+    public static QualityMetrics compute(BufferedImage original, BufferedImage decompressed) {
+        return compute(ImagetoPixelConverter.toPixelBuffer(original), ImagetoPixelConverter.toPixelBuffer(decompressed));
+    }
+
+    private void accumulate(PixelBuffer original, PixelBuffer decompressed, int rowStart, int rowEnd) {
+        PixelKernels kernels = PixelKernels.get();
+        long[] totals = new long[9];
+        for (int y = rowStart; y < rowEnd; y++) {
+            kernels.differences(original.getData(), y * original.getStride(), decompressed.getData(),
+                    y * decompressed.getStride(), original.getWidth(), totals);
+        }
+
+        for (int c = 0; c < 3; c++) {
+            absoluteErrors[c] += totals[PixelKernels.SUM + c];
+            squaredErrors[c] += totals[PixelKernels.SQUARES + c];
+            maxErrors[c] = Math.max(maxErrors[c], (int) totals[PixelKernels.MAX + c]);
+        }
+    }
+
+    private QualityMetrics merge(QualityMetrics other) {
+        for (int c = 0; c < 3; c++) {
+            absoluteErrors[c] += other.absoluteErrors[c];
+            squaredErrors[c] += other.squaredErrors[c];
+            maxErrors[c] = Math.max(maxErrors[c], other.maxErrors[c]);
+        }
+        return this;
+    }
+
+    public double getMAE() {
+        return (double) (absoluteErrors[0] + absoluteErrors[1] + absoluteErrors[2]) / (pixelCount * 3);
+    }
+
+    public double getMSE() {
+        return (double) (squaredErrors[0] + squaredErrors[1] + squaredErrors[2]) / pixelCount;
+    }
+
+    public double getPSNR() {
+        return 20 * Math.log10(MAX_PIXEL_VALUE / Math.sqrt(getMSE()));
+    }
+
+    // channel 0 = red, 1 = green, 2 = blue
+    public double getMAE(int channel) {
+        return (double) absoluteErrors[channel] / pixelCount;
+    }
+
+    public double getMSE(int channel) {
+        return (double) squaredErrors[channel] / pixelCount;
+    }
+
+    public double getPSNR(int channel) {
+        return 20 * Math.log10(MAX_PIXEL_VALUE / Math.sqrt(getMSE(channel)));
+    }
+
+    // Largest absolute difference of any single channel value
+    public int getMaxError() {
+        return Math.max(maxErrors[0], Math.max(maxErrors[1], maxErrors[2]));
+    }
+
+    public int getMaxError(int channel) {
+        return maxErrors[channel];
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Picks the variance threshold that meets a target compressed size or a target PSNR,
+// from one walk over the image instead of a compression per candidate threshold.
+//
+// The walk visits the tree that threshold 0 would build. With threshold T a node is split
+// when its variance and the variance of every ancestor are above T, so each node has one
+// critical threshold, the smallest variance on its path from the root. Lowering T past a
+// critical value splits exactly the nodes that carry it, and what that does to the node
+// count, leaf count and squared error is recorded during the walk. Summing those changes
+// in order of falling critical value gives the size and the error of the tree for every
+// threshold; the chosen one is then built once with FlatQuadTree.build.
+public class RateControl {
+
+    private static final int COLOR_CHANNELS = 3;
+
+    private final SummedAreaTable table;
+    private final int rootSize;
+    private final long pixelCount;
+
+    // Per split node, in walk order
+    private double[] critical = new double[1024];
+    private double[] errorChange = new double[1024];
+    private int[] children = new int[1024];
+    private int splitCount;
+
+    // levels[0] = no split; level l splits every node whose critical threshold is one of the
+    // l largest distinct values. thresholds[l] is the threshold that builds level l.
+    private final double[] thresholds;
+    private final long[] nodes;
+    private final long[] leaves;
+    private final double[] errors;
+
+    // Whether the compact sizes count the subtree index
+    private boolean subtreeIndex = true;
+
+    public RateControl(SummedAreaTable table, int rootSize) {
+        this.table = table;
+        this.rootSize = rootSize;
+        this.pixelCount = (long) table.getWidth() * table.getHeight();
+
+        double rootError = walk(0, 0, rootSize, Double.POSITIVE_INFINITY, new int[COLOR_CHANNELS]);
+
+        // Distinct critical values, largest first
+        double[] sorted = Arrays.copyOf(critical, splitCount);
+        Arrays.sort(sorted);
+        double[] distinct = new double[splitCount];
+        int levelCount = 0;
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            if (levelCount == 0 || sorted[i] != distinct[levelCount - 1]) {
+                distinct[levelCount++] = sorted[i];
+            }
+        }
+
+        // Add every split to the level where it first appears, then accumulate
+        thresholds = new double[levelCount + 1];
+        nodes = new long[levelCount + 1];
+        leaves = new long[levelCount + 1];
+        errors = new double[levelCount + 1];
+        for (int i = 0; i < splitCount; i++) {
+            int level = countGreater(distinct, levelCount, critical[i]) + 1;
+            nodes[level] += children[i];
+            leaves[level] += children[i] - 1;
+            errors[level] += errorChange[i];
+        }
+        nodes[0] = 1;
+        leaves[0] = 1;
+        errors[0] = rootError;
+        for (int level = 1; level <= levelCount; level++) {
+            nodes[level] += nodes[level - 1];
+            leaves[level] += leaves[level - 1];
+            errors[level] += errors[level - 1];
+        }
+        for (int level = 0; level <= levelCount; level++) {
+            thresholds[level] = level < levelCount ? distinct[level] : 0;
+        }
+
+        // Only the per-level totals are needed from here on
+        critical = null;
+        errorChange = null;
+        children = null;
+    }
+
+    // Returns the squared error of the node when it is a leaf, summed over the channels
+    private double walk(int x, int y, int size, double parentCritical, int[] avgColor) {
+        table.averageColor(x, y, size, avgColor);
+        double variance = table.variance(x, y, size, avgColor);
+        double error = variance * COLOR_CHANNELS * table.count(x, y, size);
+        if (size <= 1 || variance <= 0) {
+            return error;
+        }
+
+        double nodeCritical = Math.min(parentCritical, variance);
+        int halfSize = size >> 1;
+        int childCount = 0;
+        double childError = 0;
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int childX = x + ((quadrant & 1) == 0 ? 0 : halfSize);
+            int childY = y + ((quadrant & 2) == 0 ? 0 : halfSize);
+            if (childX < table.getWidth() && childY < table.getHeight()) {
+                childError += walk(childX, childY, halfSize, nodeCritical, avgColor);
+                childCount++;
+            }
+        }
+        record(nodeCritical, childCount, childError - error);
+        return error;
+    }
+
+    private void record(double nodeCritical, int childCount, double change) {
+        if (splitCount == critical.length) {
+            critical = Arrays.copyOf(critical, splitCount << 1);
+            errorChange = Arrays.copyOf(errorChange, splitCount << 1);
+            children = Arrays.copyOf(children, splitCount << 1);
+        }
+        critical[splitCount] = nodeCritical;
+        errorChange[splitCount] = change;
+        children[splitCount] = childCount;
+        splitCount++;
+    }
+
+    // Number of values among the first 'length' of the descending array that are greater
+    // than 'value'
+    private static int countGreater(double[] descending, int length, double value) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (descending[middle] > value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Smallest threshold (finest tree) whose compact file fits maxBytes, or the root-only
+    // tree when none does
+    public double thresholdForSize(long maxBytes) {
+        int best = 0;
+        for (int level = 0; level < thresholds.length; level++) {
+            if (compactSize(level) <= maxBytes) {
+                best = level;
+            }
+        }
+        return thresholds[best];
+    }
+
+    // Same for the progressive file. Its split bits are padded per tree level, which the
+    // counts do not tell apart, so every level is assumed to waste 7 bits: the chosen tree
+    // can come out a few bytes under the target but never over it.
+    public double thresholdForProgressiveSize(long maxBytes) {
+        int best = 0;
+        for (int level = 0; level < thresholds.length; level++) {
+            if (progressiveSize(level) <= maxBytes) {
+                best = level;
+            }
+        }
+        return thresholds[best];
+    }
+
+    // Threshold of the coarsest tree whose decoded image reaches the PSNR, or the finest tree
+    // when none does
+    public double thresholdForPSNR(double targetPSNR) {
+        double maxError = pixelCount * Math.pow(255 / Math.pow(10, targetPSNR / 20), 2);
+        for (int level = 0; level < thresholds.length; level++) {
+            if (errors[level] <= maxError) {
+                return thresholds[level];
+            }
+        }
+        return thresholds[thresholds.length - 1];
+    }
+
+    // The hybrid size cannot be predicted from the counts, so this encodes: a binary search
+    // over the levels, which grow with the level like the compact size does
+    public double thresholdForHybridSize(long maxBytes) throws IOException {
+        int low = 0;
+        int high = thresholds.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (hybridSize(thresholds[middle]) <= maxBytes) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return thresholds[low];
+    }
+
+    public FlatQuadTree build(double threshold) {
+        return build(threshold, null);
+    }
+
+    public FlatQuadTree build(double threshold, CodecContext context) {
+        return FlatQuadTree.build(table, rootSize, threshold, context);
+    }
+
+    public void setSubtreeIndex(boolean subtreeIndex) {
+        this.subtreeIndex = subtreeIndex;
+    }
+
+    // Size of the compact file written for the tree of this threshold
+    public long compactSize(double threshold) {
+        return compactSize(level(threshold));
+    }
+
+    // PSNR of the decoded image for the tree of this threshold, as QualityMetrics computes it
+    public double psnr(double threshold) {
+        double mse = errors[level(threshold)] / pixelCount;
+        return 20 * Math.log10(255 / Math.sqrt(mse));
+    }
+
+    private long compactSize(int level) {
+        long index = subtreeIndex ? QuadTreeFormat.indexBytes(table.getWidth(), table.getHeight()) : 0;
+        return QuadTreeFormat.HEADER_BYTES + index + ((nodes[level] + 7) >>> 3) + COLOR_CHANNELS * leaves[level];
+    }
+
+    private long progressiveSize(int level) {
+        int treeLevels = Integer.numberOfTrailingZeros(rootSize) + 1;
+        return ProgressiveQuadTreeFormat.HEADER_BYTES + ((nodes[level] + 7L * treeLevels) >>> 3)
+                + COLOR_CHANNELS * nodes[level];
+    }
+
+    // Level built by the threshold: the number of distinct critical values above it
+    private int level(double threshold) {
+        return countGreater(thresholds, thresholds.length - 1, threshold);
+    }
+
+    private long hybridSize(double threshold) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        HybridQuadTreeFormat.write(build(threshold), out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+// Per-channel integral images (sum and sum of squares) over an image.
+// After one O(width * height) pass, the sum of any rectangle is four lookups, so the
+// QuadTree can get the average color and variance of a node in constant time.
+public class SummedAreaTable {
+
+    private static final int COLOR_CHANNELS = 3;
+
+    private final int width;
+    private final int height;
+    private final int stride; // width + 1, the tables carry a zero row and column
+
+    // sums[c][y * stride + x] = sum of channel c over [0, x) x [0, y)
+    private final long[][] sums = new long[COLOR_CHANNELS][];
+    private final long[][] squares = new long[COLOR_CHANNELS][];
+
+    public SummedAreaTable(int[][][] image) {
+        this(PixelBuffer.fromArray(image));
+    }
+
+    public SummedAreaTable(PixelBuffer image) {
+        this(image, null);
+    }
+
+    // Tables on arrays borrowed from the context; give them back with recycle(context)
+    public SummedAreaTable(PixelBuffer image, CodecContext context) {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.stride = width + 1;
+
+        int length = (height + 1) * stride;
+        for (int c = 0; c < COLOR_CHANNELS; c++) {
+            sums[c] = context == null ? new long[length] : context.longs(length);
+            squares[c] = context == null ? new long[length] : context.longs(length);
+            // Borrowed arrays are not zeroed: clear the zero row here and the zero column below
+            Arrays.fill(sums[c], 0, stride, 0);
+            Arrays.fill(squares[c], 0, stride, 0);
+        }
+
+        long[] sumR = sums[0], sumG = sums[1], sumB = sums[2];
+        long[] squareR = squares[0], squareG = squares[1], squareB = squares[2];
+        int[] data = image.getData();
+
+        for (int y = 0; y < height; y++) {
+            long rowR = 0, rowG = 0, rowB = 0;
+            long rowSquareR = 0, rowSquareG = 0, rowSquareB = 0;
+            int source = y * image.getStride();
+            int prev = y * stride + 1;
+            int next = prev + stride;
+            sumR[next - 1] = sumG[next - 1] = sumB[next - 1] = 0;
+            squareR[next - 1] = squareG[next - 1] = squareB[next - 1] = 0;
+            for (int x = 0; x < width; x++) {
+                int rgb = data[source + x];
+                int red = (rgb >> 16) & 0xFF;
+                int green = (rgb >> 8) & 0xFF;
+                int blue = rgb & 0xFF;
+                rowR += red;
+                rowG += green;
+                rowB += blue;
+                rowSquareR += red * red;
+                rowSquareG += green * green;
+                rowSquareB += blue * blue;
+                sumR[next + x] = sumR[prev + x] + rowR;
+                sumG[next + x] = sumG[prev + x] + rowG;
+                sumB[next + x] = sumB[prev + x] + rowB;
+                squareR[next + x] = squareR[prev + x] + rowSquareR;
+                squareG[next + x] = squareG[prev + x] + rowSquareG;
+                squareB[next + x] = squareB[prev + x] + rowSquareB;
+            }
+        }
+    }
+
+    // Returns the tables to the context they were borrowed from; the table is unusable after
+    public void recycle(CodecContext context) {
+        for (int c = 0; c < COLOR_CHANNELS; c++) {
+            context.recycle(sums[c]);
+            context.recycle(squares[c]);
+            sums[c] = null;
+            squares[c] = null;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Number of pixels of the square (x, y, size) that lie inside the image
+    public int count(int x, int y, int size) {
+        int x1 = Math.min(x + size, width);
+        int y1 = Math.min(y + size, height);
+        return (x1 - x) * (y1 - y);
+    }
+
+    // Same rounding as QuadTree.calculateAverageColor: Math.round(total / count) per channel
+    public int[] averageColor(int x, int y, int size) {
+        return averageColor(x, y, size, new int[COLOR_CHANNELS]);
+    }
+
+    // Allocation-free variant: writes the average color into 'out' and returns it
+    public int[] averageColor(int x, int y, int size, int[] out) {
+        int x1 = Math.min(x + size, width);
+        int y1 = Math.min(y + size, height);
+        double count = (x1 - x) * (y1 - y);
+
+        for (int c = 0; c < COLOR_CHANNELS; c++) {
+            out[c] = (int) Math.round(rectangle(sums[c], x, y, x1, y1) / count);
+        }
+        return out;
+    }
+
+    // Same value as QuadTree.calculateVariance: sum of (v - avg)^2 over the three channels,
+    // divided by 3 * count. Expanding the square keeps every term an exact integer.
+    public double variance(int x, int y, int size, int[] avgColor) {
+        int x1 = Math.min(x + size, width);
+        int y1 = Math.min(y + size, height);
+        long count = (long) (x1 - x) * (y1 - y);
+
+        long total = 0;
+        for (int c = 0; c < COLOR_CHANNELS; c++) {
+            long sum = rectangle(sums[c], x, y, x1, y1);
+            long square = rectangle(squares[c], x, y, x1, y1);
+            long avg = avgColor[c];
+            total += square - 2 * avg * sum + count * avg * avg;
+        }
+
+        return (double) total / (3 * count);
+    }
+
+    // Both of the above from totals already summed elsewhere, such as the subtree index of a
+    // compact file: totals[0..2] the sums and totals[3..5] the sums of squares of the channels
+    public static int[] averageColor(long[] totals, long count, int[] out) {
+        for (int c = 0; c < COLOR_CHANNELS; c++) {
+            out[c] = (int) Math.round(totals[c] / (double) count);
+        }
+        return out;
+    }
+
+    public static double variance(long[] totals, long count, int[] avgColor) {
+        long total = 0;
+        for (int c = 0; c < COLOR_CHANNELS; c++) {
+            long avg = avgColor[c];
+            total += totals[COLOR_CHANNELS + c] - 2 * avg * totals[c] + count * avg * avg;
+        }
+        return (double) total / (3 * count);
+    }
+
+    private long rectangle(long[] table, int x0, int y0, int x1, int y1) {
+        return table[y1 * stride + x1] - table[y1 * stride + x0]
+                - table[y0 * stride + x1] + table[y0 * stride + x0];
+    }
+}
@@ -0,0 +1,655 @@
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// Compresses an image as a grid of fixed-size square tiles, each with its own QuadTree, so
+// neither side ever holds more than one band of tiles.
+//
+//   magic "QTT", version byte
+//   int width, int height, int tileSize
+//   per tile, row by row: int payloadLength, payload
+//   index: per tile the long file offset of its payloadLength (version 2)
+//   long offset of the index (version 2)
+//
+// The index at the end lets a reader seek straight to the tiles a region needs; the
+// writer only learns the offsets while streaming, hence the trailer. Version 1 files have
+// no index and are walked tile by tile.
+// A payload is a complete QuadTreeFormat (or HybridQuadTreeFormat) file for the tile, with
+// the tile size as root size. The source is read through ImageReader source regions, so the
+// whole image is never decoded into memory:
+//  - readers that store the image in tiles or report easy random access (TIFF) are read one
+//    tile at a time, so peak memory is bounded by the tile size;
+//  - PNG and JPEG can only be decoded in raster order, so they are read one band of
+//    tileSize rows at a time and peak memory is width x tileSize pixels. A region one tile
+//    wide would still decode those rows across the whole width, once per tile. Each band
+//    also decodes every row above it again, since the readers cannot resume where the last
+//    region ended, so the pass takes time quadratic in the height rather than memory.
+public class TiledCodec {
+
+    public static final byte[] MAGIC = { 'Q', 'T', 'T' };
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 4 + 3 * 4;
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private final int tileSize;
+
+    // Code the tiles with HybridQuadTreeFormat instead of QuadTreeFormat
+    private boolean useEntropyCoding = false;
+
+    // Nodes whose color variance is above this are split, in every tile
+    private double varianceThreshold = QuadTree.VARIANCE_THRESHOLD;
+
+    // Record each tile's build, serialization and tree shape into this; null records nothing
+    private CodecMetrics metrics;
+
+    // Receives the decompressed tiles in file order, each in its own buffer; (x, y) is the
+    // tile's top left corner in the image
+    public interface TileConsumer {
+        void accept(int x, int y, PixelBuffer tile) throws IOException;
+    }
+
+    public TiledCodec() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    // tileSize must be a power of two, so every QuadTree split covers its tile exactly
+    public TiledCodec(int tileSize) {
+        if (tileSize < 1 || Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("Tile size must be a power of two: " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setUseEntropyCoding(boolean useEntropyCoding) {
+        this.useEntropyCoding = useEntropyCoding;
+    }
+
+    public void setVarianceThreshold(double varianceThreshold) {
+        this.varianceThreshold = varianceThreshold;
+    }
+
+    // True if the buffer starts with the tiled format magic (any version)
+    public static boolean isTiled(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length + 1) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(start + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Streams the image file to the output one band of tiles at a time
+    public void Compress(File imageFile, String outputFileName) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            if (input == null) {
+                throw new FileNotFoundException("Cannot open image " + imageFile);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + imageFile);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                boolean tileRegions = reader.isImageTiled(0) || reader.isRandomAccessEasy(0);
+
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(outputFileName)))) {
+                    writeHeader(width, height, out);
+                    TileWriter writer = new TileWriter(width, height);
+                    for (int bandY = 0; bandY < height; bandY += tileSize) {
+                        int bandHeight = Math.min(tileSize, height - bandY);
+                        if (tileRegions) {
+                            for (int tileX = 0; tileX < width; tileX += tileSize) {
+                                PixelBuffer tile = writer.readRegion(reader,
+                                        new Rectangle(tileX, bandY, Math.min(tileSize, width - tileX), bandHeight));
+                                writer.writeTile(tile, 0, 0, out);
+                                writer.release(tile);
+                            }
+                        } else {
+                            PixelBuffer band = writer.readRegion(reader, new Rectangle(0, bandY, width, bandHeight));
+                            writer.writeBand(band, 0, out);
+                            writer.release(band);
+                        }
+                    }
+                    writer.writeIndex(out);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Same file from pixels already in memory
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName))) {
+            Compress(pixels, out);
+        }
+    }
+
+    public void Compress(PixelBuffer pixels, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        writeHeader(pixels.getWidth(), pixels.getHeight(), dos);
+        TileWriter writer = new TileWriter(pixels.getWidth(), pixels.getHeight());
+        for (int bandY = 0; bandY < pixels.getHeight(); bandY += tileSize) {
+            writer.writeBand(pixels, bandY, dos);
+        }
+        writer.writeIndex(dos);
+        dos.flush();
+    }
+
+    // Writes the file for an image that differs from the one 'previous' was written from only
+    // inside the rectangle. Tiles that miss it keep their payloads from the old file; the
+    // others are compressed again. The old file must have this codec's tile size and have
+    // been written with the same settings.
+    public void rewrite(ByteBuffer previous, PixelBuffer pixels, int dirtyX, int dirtyY, int dirtyWidth,
+            int dirtyHeight, OutputStream out) throws IOException {
+        int[] header = readHeader(previous);
+        int width = header[0];
+        int height = header[1];
+        if (width != pixels.getWidth() || height != pixels.getHeight() || header[2] != tileSize) {
+            throw new IllegalArgumentException("The previous file has a different image or tile size");
+        }
+        DataOutputStream dos = new DataOutputStream(out);
+        writeHeader(width, height, dos);
+        TileWriter writer = new TileWriter(width, height);
+        int position = previous.position() + HEADER_BYTES;
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                if (position + 4 > previous.limit()) {
+                    throw new IOException("Truncated tiled QuadTree file");
+                }
+                int length = previous.getInt(position);
+                if (length < 0 || position + 4 + (long) length > previous.limit()) {
+                    throw new IOException("Corrupt tiled QuadTree file");
+                }
+                if (x >= dirtyX + dirtyWidth || y >= dirtyY + dirtyHeight || x + tileSize <= dirtyX
+                        || y + tileSize <= dirtyY) {
+                    writer.copyTile(previous.slice(position + 4, length), dos);
+                } else {
+                    writer.writeTile(pixels, x, y, dos);
+                }
+                position += 4 + length;
+            }
+        }
+        writer.writeIndex(dos);
+        dos.flush();
+    }
+
+    private void writeHeader(int width, int height, DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(tileSize);
+    }
+
+    // Reads the tiles back one at a time; only the current tile is in memory
+    public void Decompress(String inputFileName, TileConsumer consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFileName)))) {
+            int[] header = readHeader(in);
+            readTiles(in, header[0], header[1], header[2], consumer);
+        }
+    }
+
+    // Whole image in one buffer, for images that fit in memory
+    public PixelBuffer Decompress(String inputFileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFileName)))) {
+            int[] header = readHeader(in);
+            PixelBuffer image = new PixelBuffer(header[0], header[1]);
+            readTiles(in, header[0], header[1], header[2], (x, y, tile) -> copyTile(tile, image, x, y));
+            return image;
+        }
+    }
+
+    // Whole image from a file already in memory; the tiles are decoded in place
+    public static PixelBuffer read(ByteBuffer buffer) throws IOException {
+        return read(buffer, null);
+    }
+
+    // Same, with the tiles decoded on the pool when it is not null. Every tile writes its
+    // own part of the image, so they need no coordination.
+    public static PixelBuffer read(ByteBuffer buffer, ForkJoinPool pool) throws IOException {
+        return read(buffer, pool, null);
+    }
+
+    // The image buffer comes from the context when it is not null
+    public static PixelBuffer read(ByteBuffer buffer, ForkJoinPool pool, CodecContext context) throws IOException {
+        int[] header = readHeader(buffer);
+        int width = header[0];
+        int height = header[1];
+        int tileSize = header[2];
+        PixelBuffer image = CodecContext.pixelBuffer(context, width, height);
+        List<RecursiveAction> tasks = new ArrayList<>();
+
+        int position = buffer.position() + HEADER_BYTES;
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                if (position + 4 > buffer.limit()) {
+                    throw new IOException("Truncated tiled QuadTree file");
+                }
+                int length = buffer.getInt(position);
+                if (length < 0 || position + 4 + (long) length > buffer.limit()) {
+                    throw new IOException("Corrupt tiled QuadTree file");
+                }
+                ByteBuffer payload = buffer.slice(position + 4, length);
+                int tileWidth = Math.min(tileSize, width - x);
+                int tileHeight = Math.min(tileSize, height - y);
+                if (pool == null) {
+                    copyTile(decodeTile(payload, tileWidth, tileHeight), image, x, y);
+                } else {
+                    tasks.add(new TileTask(payload, image, x, y, tileWidth, tileHeight));
+                }
+                position += 4 + length;
+            }
+        }
+
+        if (pool != null) {
+            try {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return image;
+    }
+
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer payload;
+        private final PixelBuffer image;
+        private final int x, y;
+        private final int width, height;
+
+        TileTask(ByteBuffer payload, PixelBuffer image, int x, int y, int width, int height) {
+            this.payload = payload;
+            this.image = image;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                copyTile(decodeTile(payload, width, height), image, x, y);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static int[] readHeader(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        in.readFully(header);
+        return readHeader(ByteBuffer.wrap(header));
+    }
+
+    // Returns width, height and tile size
+    private static int[] readHeader(ByteBuffer buffer) throws IOException {
+        if (!isTiled(buffer)) {
+            throw new IOException("Not a tiled QuadTree file");
+        }
+        int start = buffer.position();
+        int version = buffer.get(start + MAGIC.length);
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported tiled QuadTree version " + version);
+        }
+        if (buffer.remaining() < HEADER_BYTES) {
+            throw new IOException("Truncated tiled QuadTree file");
+        }
+        int tileSize = buffer.getInt(start + 12);
+        if (tileSize < 1 || Integer.bitCount(tileSize) != 1) {
+            throw new IOException("Corrupt tiled QuadTree file");
+        }
+        return new int[] { buffer.getInt(start + 4), buffer.getInt(start + 8), tileSize, version };
+    }
+
+    // Tiles along one side
+    static int tileCount(int size, int tileSize) {
+        return (size + tileSize - 1) / tileSize;
+    }
+
+    // Decodes only the tiles that intersect the rectangle, read through the index, and in
+    // each of those only the subtrees that intersect it
+    public static PixelBuffer decompressRegion(String inputFileName, int x, int y, int width, int height)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+            TileIndex index = new TileIndex(channel);
+            if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > index.width || y + height > index.height) {
+                throw new IllegalArgumentException("Region outside the image");
+            }
+            PixelBuffer region = new PixelBuffer(width, height);
+            int size = index.tileSize;
+            for (int tileY = y / size * size; tileY < y + height; tileY += size) {
+                for (int tileX = x / size * size; tileX < x + width; tileX += size) {
+                    ByteBuffer payload = index.readTile(tileX / size, tileY / size);
+
+                    // The part of the region inside this tile, in tile coordinates
+                    int left = Math.max(x, tileX) - tileX;
+                    int top = Math.max(y, tileY) - tileY;
+                    int right = Math.min(x + width, Math.min(tileX + size, index.width)) - tileX;
+                    int bottom = Math.min(y + height, Math.min(tileY + size, index.height)) - tileY;
+                    PixelBuffer part = decodeTileRegion(payload, Math.min(size, index.width - tileX),
+                            Math.min(size, index.height - tileY), left, top, right - left, bottom - top);
+                    copyTile(part, region, tileX + left - x, tileY + top - y);
+                }
+            }
+            return region;
+        }
+    }
+
+    // Preview with one pixel per (tileSize >> depth) block; every tile stops at that depth
+    public static PixelBuffer decompressAtLevel(String inputFileName, int depth) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+            TileIndex index = new TileIndex(channel);
+            int blockSize = Math.max(1, index.tileSize >> depth);
+            PixelBuffer preview = new PixelBuffer(QuadTreeFormat.levelSize(index.width, blockSize),
+                    QuadTreeFormat.levelSize(index.height, blockSize));
+            for (int row = 0; row < index.tilesY; row++) {
+                for (int column = 0; column < index.tilesX; column++) {
+                    PixelBuffer part = decodeTileAtLevel(index.readTile(column, row), blockSize);
+                    checkTile(part,
+                            QuadTreeFormat.levelSize(Math.min(index.tileSize, index.width - column * index.tileSize),
+                                    blockSize),
+                            QuadTreeFormat.levelSize(Math.min(index.tileSize, index.height - row * index.tileSize),
+                                    blockSize));
+                    copyTile(part, preview, column * index.tileSize / blockSize, row * index.tileSize / blockSize);
+                }
+            }
+            return preview;
+        }
+    }
+
+    static PixelBuffer decodeTileRegion(ByteBuffer payload, int tileWidth, int tileHeight, int x, int y, int width,
+            int height) throws IOException {
+        if (QuadTreeFormat.isCompact(payload)) {
+            return QuadTreeFormat.readRegion(payload, x, y, width, height);
+        }
+        return crop(decodeTile(payload, tileWidth, tileHeight), x, y, width, height);
+    }
+
+    static PixelBuffer decodeTileAtLevel(ByteBuffer payload, int blockSize) throws IOException {
+        if (QuadTreeFormat.isCompact(payload)) {
+            int rootSize = payload.getInt(payload.position() + 12);
+            return QuadTreeFormat.readAtLevel(payload, Integer.numberOfTrailingZeros(rootSize / blockSize));
+        }
+        return downsample(decodeTile(payload), blockSize);
+    }
+
+    // Copy of a rectangle of the image
+    static PixelBuffer crop(PixelBuffer pixels, int x, int y, int width, int height) {
+        PixelBuffer region = new PixelBuffer(width, height);
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels.getData(), pixels.index(x, y + row), region.getData(), region.index(0, row), width);
+        }
+        return region;
+    }
+
+    // Box-filtered copy with one pixel per blockSize x blockSize block
+    static PixelBuffer downsample(PixelBuffer pixels, int blockSize) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        PixelBuffer preview = new PixelBuffer(QuadTreeFormat.levelSize(width, blockSize),
+                QuadTreeFormat.levelSize(height, blockSize));
+        PixelKernels kernels = PixelKernels.get();
+        long[] sums = new long[6];
+        for (int py = 0; py < preview.getHeight(); py++) {
+            for (int px = 0; px < preview.getWidth(); px++) {
+                int x = px * blockSize;
+                int xEnd = Math.min(x + blockSize, width);
+                int yEnd = Math.min((py + 1) * blockSize, height);
+                Arrays.fill(sums, 0);
+                for (int j = py * blockSize; j < yEnd; j++) {
+                    kernels.sums(pixels.getData(), pixels.index(x, j), xEnd - x, sums);
+                }
+                double count = (double) (xEnd - x) * (yEnd - py * blockSize);
+                preview.setRGB(px, py, PixelBuffer.pack((int) Math.round(sums[PixelKernels.SUM] / count),
+                        (int) Math.round(sums[PixelKernels.SUM + 1] / count),
+                        (int) Math.round(sums[PixelKernels.SUM + 2] / count)));
+            }
+        }
+        return preview;
+    }
+
+    private static void readTiles(DataInputStream in, int width, int height, int tileSize, TileConsumer consumer)
+            throws IOException {
+        byte[] payload = new byte[0];
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Corrupt tiled QuadTree file");
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                in.readFully(payload, 0, length);
+                consumer.accept(x, y, decodeTile(ByteBuffer.wrap(payload, 0, length).slice(),
+                        Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+            }
+        }
+    }
+
+    static PixelBuffer decodeTile(ByteBuffer payload) throws IOException {
+        if (HybridQuadTreeFormat.isHybrid(payload)) {
+            return HybridQuadTreeFormat.read(payload);
+        }
+        return QuadTreeFormat.read(payload);
+    }
+
+    // Same, for the slot of a width x height tile; a payload of any other size is corrupt
+    static PixelBuffer decodeTile(ByteBuffer payload, int width, int height) throws IOException {
+        PixelBuffer tile = decodeTile(payload);
+        checkTile(tile, width, height);
+        return tile;
+    }
+
+    private static void checkTile(PixelBuffer tile, int width, int height) throws IOException {
+        if (tile.getWidth() != width || tile.getHeight() != height) {
+            throw new IOException("Corrupt tiled QuadTree file: a " + tile.getWidth() + "x" + tile.getHeight()
+                    + " tile in a " + width + "x" + height + " slot");
+        }
+    }
+
+    static void copyTile(PixelBuffer tile, PixelBuffer image, int x, int y) {
+        for (int row = 0; row < tile.getHeight(); row++) {
+            System.arraycopy(tile.getData(), tile.index(0, row), image.getData(), image.index(x, y + row),
+                    tile.getWidth());
+        }
+    }
+
+    // Where each tile's length prefix starts, from the index of a version 2 file or by
+    // hopping over the length prefixes of a version 1 file. Files that fit in one
+    // ByteBuffer are memory-mapped and tiles are slices of the mapping; larger ones are
+    // read tile by tile.
+    private static class TileIndex {
+        final int width;
+        final int height;
+        final int tileSize;
+        final int tilesX;
+        final int tilesY;
+        final long[] offsets;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final ByteBuffer mapped;
+
+        TileIndex(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+            this.mapped = fileSize <= MappedFile.MAX_MAPPED_BYTES ? MappedFile.map(channel) : null;
+
+            int[] header = readHeader(read(0, HEADER_BYTES));
+            width = header[0];
+            height = header[1];
+            tileSize = header[2];
+            tilesX = tileCount(width, tileSize);
+            tilesY = tileCount(height, tileSize);
+            offsets = new long[tilesX * tilesY];
+
+            if (header[3] >= 2) {
+                long indexOffset = read(fileSize - 8, 8).getLong(0);
+                ByteBuffer index = read(indexOffset, 8 * offsets.length);
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = index.getLong(8 * i);
+                }
+            } else {
+                long position = HEADER_BYTES;
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = position;
+                    position += 4 + read(position, 4).getInt(0);
+                }
+            }
+        }
+
+        ByteBuffer readTile(int column, int row) throws IOException {
+            long offset = offsets[row * tilesX + column];
+            int length = read(offset, 4).getInt(0);
+            if (length < 0) {
+                throw new IOException("Corrupt tiled QuadTree file");
+            }
+            return read(offset + 4, length);
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            if (position < 0 || position + length > fileSize) {
+                throw new IOException("Truncated tiled QuadTree file");
+            }
+            if (mapped != null) {
+                return mapped.slice((int) position, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Truncated tiled QuadTree file");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    // Cuts bands into tiles and writes each as a length-prefixed payload. The tile pixels,
+    // the band or tile read from the source, the summed-area table, the node arrays and the
+    // payload bytes are reused from tile to tile.
+    private class TileWriter {
+        private final int[] tileData = new int[tileSize * tileSize];
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        private final byte[] copyBuffer = new byte[8192];
+        // Holds one tile's table and tree, and one band, between uses
+        private final CodecContext context = new CodecContext(64L << 20);
+        private final long[] offsets;
+        private int tileCount;
+        private long position = HEADER_BYTES;
+
+        TileWriter(int width, int height) {
+            offsets = new long[tileCount(width, tileSize) * tileCount(height, tileSize)];
+        }
+
+        // The region of the source image, in a buffer from the context
+        PixelBuffer readRegion(ImageReader reader, Rectangle region) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            return ImagetoPixelConverter.toPixelBuffer(reader.read(0, param), context);
+        }
+
+        void release(PixelBuffer pixels) {
+            context.recycle(pixels);
+        }
+
+        // Writes the row of tiles whose top edge is row bandY of 'pixels'
+        void writeBand(PixelBuffer pixels, int bandY, DataOutputStream out) throws IOException {
+            for (int tileX = 0; tileX < pixels.getWidth(); tileX += tileSize) {
+                writeTile(pixels, tileX, bandY, out);
+            }
+        }
+
+        void writeTile(PixelBuffer pixels, int tileX, int tileY, DataOutputStream out) throws IOException {
+            int tileWidth = Math.min(tileSize, pixels.getWidth() - tileX);
+            int tileHeight = Math.min(tileSize, pixels.getHeight() - tileY);
+            for (int row = 0; row < tileHeight; row++) {
+                System.arraycopy(pixels.getData(), pixels.index(tileX, tileY + row), tileData, row * tileWidth,
+                        tileWidth);
+            }
+            PixelBuffer tile = new PixelBuffer(tileWidth, tileHeight, tileData);
+            CodecMetrics.Sample build = CodecMetrics.start(metrics, CodecMetrics.Stage.BUILD);
+            SummedAreaTable table = new SummedAreaTable(tile, context);
+            FlatQuadTree tree = FlatQuadTree.build(table, tileSize, varianceThreshold, context);
+            table.recycle(context);
+            build.stop();
+            if (metrics != null) {
+                metrics.recordTree(tree.getNodeCount(), tree.getLeafCount(), tree.getDepth(),
+                        tree.estimateHeapBytes());
+            }
+
+            CodecMetrics.Sample serialize = CodecMetrics.start(metrics, CodecMetrics.Stage.SERIALIZE);
+            payload.reset();
+            if (useEntropyCoding) {
+                HybridQuadTreeFormat.write(tree, payload);
+            } else {
+                QuadTreeFormat.write(tree, payload);
+            }
+            serialize.stop();
+            tree.recycle();
+            offsets[tileCount++] = position;
+            out.writeInt(payload.size());
+            payload.writeTo(out);
+            position += 4 + payload.size();
+        }
+
+        // Writes a tile's payload from another file unchanged
+        void copyTile(ByteBuffer tilePayload, DataOutputStream out) throws IOException {
+            int length = tilePayload.remaining();
+            offsets[tileCount++] = position;
+            out.writeInt(length);
+            for (int from = tilePayload.position(), end = from + length; from < end; from += copyBuffer.length) {
+                int chunk = Math.min(end - from, copyBuffer.length);
+                tilePayload.get(from, copyBuffer, 0, chunk);
+                out.write(copyBuffer, 0, chunk);
+            }
+            position += 4 + length;
+        }
+
+        void writeIndex(DataOutputStream out) throws IOException {
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.writeLong(position);
+        }
+    }
+}
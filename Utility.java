@@ -1,116 +1,579 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
-class QuadNode implements Serializable {
-    int x, y, size;
-    int[] color; // [R, G, B]
-    QuadNode nw, ne, sw, se;
-
-    public QuadNode(int x, int y, int size, int[] color) {
-        this.x = x;
-        this.y = y;
-        this.size = size;
-        this.color = color;
-        this.nw = null;
-        this.ne = null;
-        this.sw = null;
-        this.se = null;
+public class Utility {
+
+    private static final int COLOR_CHANNELS = 3; // Constant for color channels
+
+    // Build the QuadTree from integral images; produces exactly the same tree as the direct scan
+    private boolean useSummedAreaTable = true;
+
+    public void setUseSummedAreaTable(boolean useSummedAreaTable) {
+        this.useSummedAreaTable = useSummedAreaTable;
     }
-}
 
-class QuadTree implements Serializable {
+    // Write the old ObjectOutputStream format instead of the compact bitstream
+    private boolean useLegacySerialization = false;
 
-    QuadNode root;
+    public void setUseLegacySerialization(boolean useLegacySerialization) {
+        this.useLegacySerialization = useLegacySerialization;
+    }
 
-    // You can tune this threshold
-    public static final double VARIANCE_THRESHOLD = 100;
+    // Keep the tree in FlatQuadTree's primitive arrays instead of QuadNode objects
+    private boolean useFlatTree = false;
 
-    public QuadTree(int[][][] image, int x, int y, int size) {
-        this.root = build(image, x, y, size);
+    public void setUseFlatTree(boolean useFlatTree) {
+        this.useFlatTree = useFlatTree;
     }
 
-    // Recursive function to build the QuadTree
-    private QuadNode build(int[][][] image, int x, int y, int size) {
-        if (x >= image.length || y >= image[0].length) {
-            return null; // Boundary case
-        }
+    // Write HybridQuadTreeFormat: structure and colors Huffman-coded as deltas from the parent
+    private boolean useEntropyCoding = false;
+
+    public void setUseEntropyCoding(boolean useEntropyCoding) {
+        this.useEntropyCoding = useEntropyCoding;
+    }
 
-        int[] avgColor = calculateAverageColor(image, x, y, size);
-        double variance = calculateVariance(image, x, y, size, avgColor);
+    // Write ProgressiveQuadTreeFormat: the tree level by level, so a reader can show a coarse
+    // image before the rest of the file has arrived. Ignored for tiled and entropy-coded output.
+    private boolean useProgressiveFormat = false;
 
-        QuadNode node = new QuadNode(x, y, size, avgColor);
+    public void setUseProgressiveFormat(boolean useProgressiveFormat) {
+        this.useProgressiveFormat = useProgressiveFormat;
+    }
 
-        if (size > 1 && variance > VARIANCE_THRESHOLD) {
-            int halfSize = size >> 1; // using bitwise operation for efficiency
-            node.nw = build(image, x, y, halfSize);
-            node.ne = build(image, x + halfSize, y, halfSize);
-            node.sw = build(image, x, y + halfSize, halfSize);
-            node.se = build(image, x + halfSize, y + halfSize, halfSize);
-        }
+    // Give compact files an index of the subtrees of every 64x64 cell, so region and preview
+    // decodes move past whole subtrees instead of reading their structure bits, and
+    // recompressRegion only measures the cells an edit touches
+    private boolean useSubtreeIndex = true;
 
-        return node;
+    public void setUseSubtreeIndex(boolean useSubtreeIndex) {
+        this.useSubtreeIndex = useSubtreeIndex;
     }
 
-    private double calculateVariance(int[][][] image, int x, int y, int size, int[] avgColor) {
-        double varR = 0.0, varG = 0.0, varB = 0.0;
-        int count = 0;
+    // Nodes whose color variance is above this are split
+    private double varianceThreshold = QuadTree.VARIANCE_THRESHOLD;
 
-        for (int i = x; i < x + size && i < image.length; i++) {
-            for (int j = y; j < y + size && j < image[0].length; j++) {
-                varR += Math.pow(image[i][j][0] - avgColor[0], 2);
-                varG += Math.pow(image[i][j][1] - avgColor[1], 2);
-                varB += Math.pow(image[i][j][2] - avgColor[2], 2);
-                count++;
-            }
+    public void setVarianceThreshold(double varianceThreshold) {
+        this.varianceThreshold = varianceThreshold;
+    }
+
+    // Rate control: choose the threshold per image so the file fits in targetSize bytes, or
+    // so the decoded image reaches targetPSNR dB. Setting one clears the other; 0 is off.
+    // Applies to single-tree compact and hybrid files; tiles use the fixed threshold.
+    private long targetSize = 0;
+    private double targetPSNR = 0;
+
+    public void setTargetSize(long targetSize) {
+        this.targetSize = targetSize;
+        this.targetPSNR = 0;
+    }
+
+    public void setTargetPSNR(double targetPSNR) {
+        this.targetPSNR = targetPSNR;
+        this.targetSize = 0;
+    }
+
+    // Threshold used by the last Compress call
+    private double lastVarianceThreshold = QuadTree.VARIANCE_THRESHOLD;
+
+    public double getLastVarianceThreshold() {
+        return lastVarianceThreshold;
+    }
+
+    // Compress as independent tiles of this size with TiledCodec; null writes one tree
+    private TiledCodec tiledCodec;
+
+    // tileSize 0 switches tiling off; otherwise a power of two
+    public void setTileSize(int tileSize) {
+        tiledCodec = tileSize > 0 ? new TiledCodec(tileSize) : null;
+    }
+
+    // Parse compressed files straight from a read-only memory mapping instead of a heap copy
+    private boolean useMemoryMapping = true;
+
+    public void setUseMemoryMapping(boolean useMemoryMapping) {
+        this.useMemoryMapping = useMemoryMapping;
+    }
+
+    // Build the QuadTree or FlatQuadTree on a ForkJoinPool; null builds sequentially. Rate
+    // control still searches for its threshold in one thread before the parallel build, and
+    // tiled output builds one small tile at a time without it.
+    private ParallelQuadTreeBuilder parallelBuilder;
+
+    // parallelism <= 1 switches back to the sequential build
+    public void setParallelism(int parallelism, int cutoff) {
+        if (parallelBuilder != null) {
+            parallelBuilder.shutdown();
         }
+        parallelBuilder = parallelism > 1 ? new ParallelQuadTreeBuilder(parallelism, cutoff) : null;
+    }
 
-        // Calculate average variance across the color channels
-        double avgVariance = (varR + varG + varB) / (3 * count);
+    public void setParallelism(int parallelism) {
+        setParallelism(parallelism, ParallelQuadTreeBuilder.DEFAULT_CUTOFF);
+    }
+
+    // Decode compact and tiled files on a ForkJoinPool; null decodes in the calling thread
+    private ForkJoinPool decodePool;
 
-        return avgVariance;
+    // parallelism <= 1 switches back to the sequential decode
+    public void setDecodeParallelism(int parallelism) {
+        if (decodePool != null) {
+            decodePool.shutdown();
+        }
+        decodePool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
     }
 
-    private int[] calculateAverageColor(int[][][] image, int x, int y, int size) {
-        double totalR = 0, totalG = 0, totalB = 0;
-        int count = 0;
+    // Serve Compress from this store when the same pixels were compressed with the same
+    // settings before; null always compresses
+    private CompressionCache compressionCache;
 
-        for (int i = x; i < x + size && i < image.length; i++) {
-            for (int j = y; j < y + size && j < image[0].length; j++) {
-                totalR += image[i][j][0];
-                totalG += image[i][j][1];
-                totalB += image[i][j][2];
-                count++;
-            }
+    public void setCompressionCache(CompressionCache compressionCache) {
+        this.compressionCache = compressionCache;
+    }
+
+    // Everything that changes the bytes Compress writes for given pixels. The tree layout
+    // and the build path (flat, summed-area table, parallel) do not, so they are left out.
+    public String cacheSettings() {
+        String format;
+        if (useLegacySerialization) {
+            format = "legacy";
+        } else if (useEntropyCoding) {
+            format = "hybrid" + HybridQuadTreeFormat.VERSION;
+        } else if (useProgressiveFormat && tiledCodec == null) {
+            format = "progressive" + ProgressiveQuadTreeFormat.VERSION;
+        } else {
+            format = "compact" + (useSubtreeIndex ? QuadTreeFormat.VERSION : 1);
+        }
+        if (tiledCodec != null && !useLegacySerialization) {
+            return format + ";tiled" + TiledCodec.VERSION + "=" + tiledCodec.getTileSize()
+                    + ";threshold=" + varianceThreshold;
         }
+        return format + ";threshold=" + varianceThreshold + ";size=" + targetSize + ";psnr=" + targetPSNR;
+    }
+
+    // Borrow the summed-area tables, node arrays and decoded images from this context and
+    // give the temporaries back at the end of each call; null allocates them every time.
+    // Decoded images belong to the caller, who can hand them back with context.recycle.
+    private CodecContext codecContext;
 
-        return new int[] { (int) Math.round(totalR / count), (int) Math.round(totalG / count),
-                (int) Math.round(totalB / count) };
+    public void setCodecContext(CodecContext codecContext) {
+        this.codecContext = codecContext;
     }
 
-}
+    // Record stage latencies, tree shapes and bytes into this; null records nothing
+    private CodecMetrics metrics;
 
-public class Utility {
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-    private static final int COLOR_CHANNELS = 3; // Constant for color channels
+    private void recordTree(FlatQuadTree tree) {
+        if (metrics != null) {
+            metrics.recordTree(tree.getNodeCount(), tree.getLeafCount(), tree.getDepth(), tree.estimateHeapBytes());
+        }
+    }
+
+    private void recordTree(QuadTree tree) {
+        if (metrics != null) {
+            metrics.recordTree(tree.countNodes(), tree.countLeaves(), tree.getDepth(), tree.estimateHeapBytes());
+        }
+    }
+
+    // Heap held by the tree of the last Compress or Decompress call
+    private long lastTreeHeapBytes;
+
+    public long getLastTreeHeapBytes() {
+        return lastTreeHeapBytes;
+    }
 
     public void Compress(int[][][] pixels, String outputFileName) throws IOException {
-        QuadTree quadTree = new QuadTree(pixels, 0, 0, pixels.length);
+        Compress(PixelBuffer.fromArray(pixels), outputFileName);
+    }
 
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
         // Using buffered output stream
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new BufferedOutputStream(new FileOutputStream(outputFileName)))) {
-            oos.writeInt(pixels.length);
-            oos.writeInt(pixels[0].length);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName))) {
+            Compress(pixels, out);
+        }
+    }
+
+    // Writes the compressed image to 'out'; the stream is flushed but not closed
+    public void Compress(PixelBuffer pixels, OutputStream out) throws IOException {
+        if (metrics != null) {
+            out = metrics.countWrites(out);
+        }
+        if (compressionCache == null) {
+            compressUncached(pixels, out);
+            return;
+        }
+        String settings = cacheSettings();
+        String key = CompressionCache.key(pixels, settings);
+        byte[] cached = compressionCache.get(key, settings);
+        if (cached == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            compressUncached(pixels, buffer);
+            cached = buffer.toByteArray();
+            compressionCache.put(key, settings, cached);
+        } else {
+            lastVarianceThreshold = Double.NaN; // not known for a stored result
+            lastTreeHeapBytes = 0;
+        }
+        out.write(cached);
+        out.flush();
+    }
+
+    private void compressUncached(PixelBuffer pixels, OutputStream out) throws IOException {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+
+        lastVarianceThreshold = varianceThreshold;
+        if (tiledCodec != null && !useLegacySerialization) {
+            tiledCodec.setUseEntropyCoding(useEntropyCoding);
+            tiledCodec.setVarianceThreshold(varianceThreshold);
+            tiledCodec.setMetrics(metrics);
+            tiledCodec.Compress(pixels, out);
+            lastTreeHeapBytes = 0; // one tile's tree at a time
+            return;
+        }
+
+        // The hybrid and progressive writers need every node's color, which FlatQuadTree
+        // keeps; so does rate control, and any threshold other than the default
+        boolean rateControl = targetSize > 0 || targetPSNR > 0;
+        if ((useFlatTree || useEntropyCoding || useProgressiveFormat || rateControl
+                || varianceThreshold != QuadTree.VARIANCE_THRESHOLD) && !useLegacySerialization) {
+            CodecMetrics.Sample build = CodecMetrics.start(metrics, CodecMetrics.Stage.BUILD);
+            SummedAreaTable table = new SummedAreaTable(pixels, codecContext);
+            int rootSize = QuadTree.rootSize(width, height);
+            FlatQuadTree tree;
+            if (rateControl) {
+                RateControl control = new RateControl(table, rootSize);
+                control.setSubtreeIndex(useSubtreeIndex);
+                if (targetPSNR > 0) {
+                    lastVarianceThreshold = control.thresholdForPSNR(targetPSNR);
+                } else if (useEntropyCoding) {
+                    lastVarianceThreshold = control.thresholdForHybridSize(targetSize);
+                } else if (useProgressiveFormat) {
+                    lastVarianceThreshold = control.thresholdForProgressiveSize(targetSize);
+                } else {
+                    lastVarianceThreshold = control.thresholdForSize(targetSize);
+                }
+                tree = buildFlatTree(table, rootSize, lastVarianceThreshold);
+            } else {
+                tree = buildFlatTree(table, rootSize, varianceThreshold);
+            }
+            if (codecContext != null) {
+                table.recycle(codecContext);
+            }
+            build.stop();
+            recordTree(tree);
+            lastTreeHeapBytes = tree.estimateHeapBytes();
+            CodecMetrics.Sample serialize = CodecMetrics.start(metrics, CodecMetrics.Stage.SERIALIZE);
+            if (useEntropyCoding) {
+                HybridQuadTreeFormat.write(tree, out);
+            } else if (useProgressiveFormat) {
+                ProgressiveQuadTreeFormat.write(tree, out);
+            } else {
+                QuadTreeFormat.write(tree, useSubtreeIndex ? pixels : null, out);
+            }
+            serialize.stop();
+            tree.recycle();
+            return;
+        }
+
+        CodecMetrics.Sample build = CodecMetrics.start(metrics, CodecMetrics.Stage.BUILD);
+        QuadTree quadTree = buildQuadTree(pixels);
+        build.stop();
+        recordTree(quadTree);
+        lastTreeHeapBytes = quadTree.estimateHeapBytes();
+
+        CodecMetrics.Sample serialize = CodecMetrics.start(metrics, CodecMetrics.Stage.SERIALIZE);
+        if (useLegacySerialization) {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeInt(width);
+            oos.writeInt(height);
             oos.writeObject(quadTree);
+            oos.flush();
+        } else {
+            QuadTreeFormat.write(quadTree, width, height, QuadTree.rootSize(width, height),
+                    useSubtreeIndex ? pixels : null, out);
+        }
+        serialize.stop();
+    }
+
+    private FlatQuadTree buildFlatTree(SummedAreaTable table, int rootSize, double threshold) {
+        return parallelBuilder != null ? parallelBuilder.buildFlat(table, rootSize, threshold, codecContext)
+                : FlatQuadTree.build(table, rootSize, threshold, codecContext);
+    }
+
+    QuadTree buildQuadTree(PixelBuffer pixels) {
+        int rootSize = QuadTree.rootSize(pixels.getWidth(), pixels.getHeight());
+        if (parallelBuilder == null && !useSummedAreaTable) {
+            return new QuadTree(pixels.toArray(), 0, 0, rootSize);
         }
+        // The QuadNodes copy what they need, so the table can go back as soon as they exist
+        SummedAreaTable table = new SummedAreaTable(pixels, codecContext);
+        QuadTree quadTree = parallelBuilder != null ? parallelBuilder.build(table, rootSize, varianceThreshold)
+                : new QuadTree(table, 0, 0, rootSize);
+        if (codecContext != null) {
+            table.recycle(codecContext);
+        }
+        return quadTree;
+    }
+
+    // Recompresses an image that changed only inside the rectangle, starting from the file it
+    // was compressed to before, which must have been written with the current settings.
+    // Compact files with the subtree index keep every subtree that misses the rectangle, at a
+    // cost that grows with the cells it touches, and tiled files every tile that misses it.
+    // Other formats, compact files without the index, another image size or rate control
+    // compress the whole image again. outputFileName may be previousFileName.
+    public void recompressRegion(String previousFileName, PixelBuffer pixels, int x, int y, int width, int height,
+            String outputFileName) throws IOException {
+        checkRegion(x, y, width, height, pixels.getWidth(), pixels.getHeight());
+        recompress(previousFileName, pixels, x, y, width, height, outputFileName);
+    }
+
+    // Same, with the rectangle found by comparing the pixels with the ones the previous file
+    // was compressed from
+    public void recompress(String previousFileName, PixelBuffer previousPixels, PixelBuffer pixels,
+            String outputFileName) throws IOException {
+        if (previousPixels.getWidth() != pixels.getWidth() || previousPixels.getHeight() != pixels.getHeight()) {
+            Compress(pixels, outputFileName);
+            return;
+        }
+        int[] changed = changedBounds(previousPixels, pixels);
+        recompress(previousFileName, pixels, changed[0], changed[1], changed[2], changed[3], outputFileName);
+    }
+
+    private void recompress(String previousFileName, PixelBuffer pixels, int x, int y, int width, int height,
+            String outputFileName) throws IOException {
+        // The output goes to a temporary file that is moved into place at the end, so it can
+        // replace the previous file while that is still being read, mapped or not
+        ByteBuffer previous = readFile(previousFileName);
+        Path output = Paths.get(outputFileName).toAbsolutePath();
+        Path temporary = Files.createTempFile(output.getParent(), output.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)) {
+                CodecMetrics.Sample update = CodecMetrics.start(metrics, CodecMetrics.Stage.UPDATE);
+                boolean rewritten = rewrite(previous, pixels, x, y, width, height, out);
+                update.stop();
+                if (!rewritten) {
+                    Compress(pixels, out);
+                } else if (metrics != null) {
+                    out.flush();
+                    metrics.recordBytesWritten(Files.size(temporary));
+                }
+            }
+            Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // False when the previous file cannot be reused
+    private boolean rewrite(ByteBuffer previous, PixelBuffer pixels, int x, int y, int width, int height,
+            OutputStream out) throws IOException {
+        if (targetSize > 0 || targetPSNR > 0 || useLegacySerialization || previous.remaining() < 16
+                || previous.getInt(4) != pixels.getWidth() || previous.getInt(8) != pixels.getHeight()) {
+            return false;
+        }
+        if (tiledCodec != null) {
+            if (!TiledCodec.isTiled(previous) || previous.getInt(12) != tiledCodec.getTileSize()) {
+                return false;
+            }
+            tiledCodec.setUseEntropyCoding(useEntropyCoding);
+            tiledCodec.setVarianceThreshold(varianceThreshold);
+            tiledCodec.setMetrics(metrics);
+            tiledCodec.rewrite(previous, pixels, x, y, width, height, out);
+            return true;
+        }
+        // Hybrid files predict colors from neighbouring blocks and share one Huffman table, so
+        // no subtree can be kept as is; progressive files interleave every subtree's levels.
+        // Without the subtree index every subtree would have to be walked and the whole
+        // image measured, which is most of what a full Compress costs.
+        if (useEntropyCoding || useProgressiveFormat || !useSubtreeIndex
+                || !QuadTreeFormat.hasSubtreeIndex(previous)) {
+            return false;
+        }
+        QuadTreeFormat.rewrite(previous, pixels, varianceThreshold, x, y, width, height, out);
+        lastVarianceThreshold = varianceThreshold;
+        lastTreeHeapBytes = 0; // no tree is built
+        return true;
+    }
+
+    // {x, y, width, height} of the smallest rectangle holding every pixel that differs;
+    // width and height are 0 when none does
+    private static int[] changedBounds(PixelBuffer before, PixelBuffer after) {
+        int width = after.getWidth();
+        int left = width, right = -1, top = -1, bottom = -1;
+        for (int y = 0; y < after.getHeight(); y++) {
+            int a = before.index(0, y);
+            int b = after.index(0, y);
+            int first = Arrays.mismatch(before.getData(), a, a + width, after.getData(), b, b + width);
+            if (first < 0) {
+                continue;
+            }
+            int last = width - 1;
+            while (before.getData()[a + last] == after.getData()[b + last]) {
+                last--;
+            }
+            left = Math.min(left, first);
+            right = Math.max(right, last);
+            if (top < 0) {
+                top = y;
+            }
+            bottom = y;
+        }
+        if (top < 0) {
+            return new int[4];
+        }
+        return new int[] { left, top, right - left + 1, bottom - top + 1 };
     }
 
     public int[][][] Decompress(String inputFileName) throws IOException, ClassNotFoundException {
+        return DecompressToBuffer(inputFileName).toArray();
+    }
+
+    public PixelBuffer DecompressToBuffer(String inputFileName) throws IOException, ClassNotFoundException {
+        ByteBuffer buffer = readFile(inputFileName);
+        if (metrics != null) {
+            metrics.recordBytesRead(buffer.remaining());
+        }
+        // Formats decoded without a tree count the whole decode as deserialization
+        CodecMetrics.Sample deserialize = CodecMetrics.start(metrics, CodecMetrics.Stage.DESERIALIZE);
+        PixelBuffer pixels;
+        if (TiledCodec.isTiled(buffer)) {
+            lastTreeHeapBytes = 0;
+            pixels = TiledCodec.read(buffer, decodePool, codecContext);
+        } else if (HybridQuadTreeFormat.isHybrid(buffer)) {
+            lastTreeHeapBytes = 0; // decoded without building a tree
+            pixels = HybridQuadTreeFormat.read(buffer, codecContext);
+        } else if (ProgressiveQuadTreeFormat.isProgressive(buffer)) {
+            lastTreeHeapBytes = 0; // decoded without building a tree
+            pixels = ProgressiveQuadTreeFormat.read(buffer, codecContext);
+        } else if (QuadTreeFormat.isCompact(buffer)) {
+            if (useFlatTree) {
+                FlatQuadTree tree = QuadTreeFormat.readFlat(buffer, codecContext);
+                deserialize.stop();
+                recordTree(tree);
+                lastTreeHeapBytes = tree.estimateHeapBytes();
+                CodecMetrics.Sample reconstruct = CodecMetrics.start(metrics, CodecMetrics.Stage.RECONSTRUCT);
+                pixels = CodecContext.pixelBuffer(codecContext, tree.width, tree.height);
+                tree.reconstructImage(pixels);
+                reconstruct.stop();
+                tree.recycle();
+                return pixels;
+            }
+            lastTreeHeapBytes = 0; // decoded without building a tree
+            pixels = decodePool != null ? QuadTreeFormat.read(buffer, decodePool, codecContext)
+                    : QuadTreeFormat.read(buffer, codecContext);
+        } else {
+            return decompressLegacy(buffer, deserialize);
+        }
+        deserialize.stop();
+        return pixels;
+    }
+
+    // Only the pixels of the rectangle. Tiled files read just the tiles it touches and
+    // compact files skip the subtrees outside it, in one step per cell when they have the
+    // subtree index; other formats are decoded whole and cropped.
+    public PixelBuffer decompressRegion(String inputFileName, int x, int y, int width, int height)
+            throws IOException, ClassNotFoundException {
+        if (isTiledFile(inputFileName)) {
+            lastTreeHeapBytes = 0;
+            return TiledCodec.decompressRegion(inputFileName, x, y, width, height);
+        }
+        ByteBuffer buffer = readFile(inputFileName);
+        if (QuadTreeFormat.isCompact(buffer)) {
+            int imageWidth = buffer.getInt(buffer.position() + 4);
+            int imageHeight = buffer.getInt(buffer.position() + 8);
+            checkRegion(x, y, width, height, imageWidth, imageHeight);
+            lastTreeHeapBytes = 0;
+            return QuadTreeFormat.readRegion(buffer, x, y, width, height);
+        }
+        PixelBuffer pixels = DecompressToBuffer(inputFileName);
+        checkRegion(x, y, width, height, pixels.getWidth(), pixels.getHeight());
+        return TiledCodec.crop(pixels, x, y, width, height);
+    }
+
+    // Low-resolution preview, one pixel per (rootSize >> depth) block (tileSize >> depth
+    // for tiled files). Compact files with the subtree index take blocks of 64 pixels or
+    // more from it without reading their leaves, as the exact source average; finer blocks,
+    // and files without the index, still walk every structure bit below the depth and
+    // average the leaves, which can differ from it by one per channel. Progressive
+    // files stop reading after its level.
+    public PixelBuffer decompressAtLevel(String inputFileName, int depth) throws IOException, ClassNotFoundException {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+        lastTreeHeapBytes = 0;
+        if (isTiledFile(inputFileName)) {
+            return TiledCodec.decompressAtLevel(inputFileName, depth);
+        }
+        ByteBuffer buffer = readFile(inputFileName);
+        if (QuadTreeFormat.isCompact(buffer)) {
+            return QuadTreeFormat.readAtLevel(buffer, depth);
+        }
+        if (ProgressiveQuadTreeFormat.isProgressive(buffer)) {
+            // Only the first depth + 1 levels are read
+            ProgressiveQuadTreeFormat.Decoder decoder = new ProgressiveQuadTreeFormat.Decoder(
+                    MappedFile.asStream(buffer));
+            while (decoder.getLevel() <= depth && decoder.readLevel()) {
+                // each level refines the preview
+            }
+            int rootSize = QuadTree.rootSize(decoder.getWidth(), decoder.getHeight());
+            return TiledCodec.downsample(decoder.getImage(), Math.max(1, rootSize >> depth));
+        }
+        PixelBuffer pixels = DecompressToBuffer(inputFileName);
+        int rootSize = QuadTree.rootSize(pixels.getWidth(), pixels.getHeight());
+        return TiledCodec.downsample(pixels, Math.max(1, rootSize >> depth));
+    }
+
+    // Decodes a progressive file as its bytes arrive, e.g. from a socket, handing the image
+    // to the consumer after every tree level. Returns the last image; if the stream ended
+    // early it is the preview of the last whole level.
+    public PixelBuffer decompressProgressive(InputStream in, ProgressiveQuadTreeFormat.LevelConsumer consumer)
+            throws IOException {
+        CodecMetrics.Sample deserialize = CodecMetrics.start(metrics, CodecMetrics.Stage.DESERIALIZE);
+        ProgressiveQuadTreeFormat.Decoder decoder = ProgressiveQuadTreeFormat.read(in, consumer);
+        deserialize.stop();
+        lastTreeHeapBytes = 0;
+        return decoder.getImage();
+    }
+
+    private ByteBuffer readFile(String inputFileName) throws IOException {
+        if (useMemoryMapping) {
+            return MappedFile.map(inputFileName);
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(Paths.get(inputFileName)));
+    }
+
+    // Tiled files can be larger than the heap, so only their first bytes are looked at
+    private static boolean isTiledFile(String inputFileName) throws IOException {
+        try (InputStream in = new FileInputStream(inputFileName)) {
+            byte[] magic = in.readNBytes(TiledCodec.MAGIC.length + 1);
+            return TiledCodec.isTiled(ByteBuffer.wrap(magic));
+        }
+    }
+
+    private static void checkRegion(int x, int y, int width, int height, int imageWidth, int imageHeight) {
+        if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > imageWidth || y + height > imageHeight) {
+            throw new IllegalArgumentException("Region outside the image");
+        }
+    }
+
+    // Files written before the compact format: a serialized QuadTree graph
+    private PixelBuffer decompressLegacy(ByteBuffer buffer, CodecMetrics.Sample deserialize)
+            throws IOException, ClassNotFoundException {
         int sizeX, sizeY;
         QuadTree quadTree;
 
-        // Using buffered input stream
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new BufferedInputStream(new FileInputStream(inputFileName)))) {
+        try (ObjectInputStream ois = new ObjectInputStream(MappedFile.asStream(buffer))) {
             sizeY = ois.readInt();
             sizeX = ois.readInt();
             Object object = ois.readObject();
@@ -121,26 +584,25 @@ public class Utility {
             }
         }
 
-        int[][][] pixels = new int[sizeY][sizeX][COLOR_CHANNELS];
+        deserialize.stop();
+        recordTree(quadTree);
+        lastTreeHeapBytes = quadTree.estimateHeapBytes();
+        CodecMetrics.Sample reconstruct = CodecMetrics.start(metrics, CodecMetrics.Stage.RECONSTRUCT);
+        PixelBuffer pixels = new PixelBuffer(sizeY, sizeX);
         reconstructImage(quadTree.root, pixels);
+        reconstruct.stop();
 
         return pixels;
     }
 
-    private void reconstructImage(QuadNode node, int[][][] pixels) {
+    private void reconstructImage(QuadNode node, PixelBuffer pixels) {
         if (node == null) {
             return;
         }
 
         if (node.nw == null && node.ne == null && node.sw == null && node.se == null) {
-            // This is a leaf node, fill the pixels
-            for (int i = node.x; i < node.x + node.size; i++) {
-                for (int j = node.y; j < node.y + node.size; j++) {
-                    pixels[i][j][0] = node.color[0];
-                    pixels[i][j][1] = node.color[1];
-                    pixels[i][j][2] = node.color[2];
-                }
-            }
+            // This is a leaf node, fill the pixels that lie inside the image
+            pixels.fill(node.x, node.y, node.size, node.size, FlatQuadTree.pack(node.color));
             return;
         }
 
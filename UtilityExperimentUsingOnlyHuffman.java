@@ -1,213 +1,159 @@
-import java.io.*;
-import java.util.*;
-import java.util.stream.Collectors;
-
-public class UtilityExperimentUsingOnlyHuffman {
-
-    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
-        Map<Integer, Integer> frequencyTable = generateFreqTable(pixels);
-
-        //Frequency Table to PriorityQueue
-        PriorityQueue<HuffmanNode> nodes = generatePriorityQueue(frequencyTable);
-
-        //Build Huffman Tree
-        HuffmanNode huffmanTree = generateAHuffmanTree(nodes);
-
-        // Generate Huffman codes
-        Map<Integer, String> huffmanCodes = new HashMap<>();
-        generateHuffmanCodes(huffmanTree, "", huffmanCodes);
-
-        // Write the Huffman-encoded data
-        writeEncodedData(pixels, outputFileName, huffmanCodes);
-    }
-
-
-    public int[][][] Decompress(String inputFileName) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(inputFileName))) {
-            // Read Huffman codes
-            Map<Integer, String> huffmanCodes = (Map<Integer, String>) ois.readObject();
-
-            // Read dimensions of the array
-            int depth = ois.readInt();
-            int height = ois.readInt();
-            int width = 3; // r, g, b
-
-            int[][][] pixels = new int[depth][height][width];
-
-            // Read the Huffman-encoded data and decode it
-            for (int i = 0; i < depth; i++) {
-                for (int j = 0; j < height; j++) {
-                    for (int k = 0; k < width; k++) {
-                        String code = ois.readUTF();
-                        int value = decodeHuffmanCode(code, huffmanCodes);
-                        pixels[i][j][k] = value;
-                    }
-                }
-            }
-
-            return pixels;
-        }
-    }
-
-
-    //Function to take priority queue and convert into a huffman tree, returning the root node of the tree
-    public HuffmanNode generateAHuffmanTree(PriorityQueue<HuffmanNode> priorityQueue) {
-        // Build a Huffman tree
-        while (priorityQueue.size() > 1) {
-            HuffmanNode left = priorityQueue.remove();
-            HuffmanNode right = priorityQueue.remove();
-            HuffmanNode parent = new HuffmanNode(left, right);
-            priorityQueue.add(parent);
-        }
-        return priorityQueue.peek();
-    }
-
-
-    private PriorityQueue<HuffmanNode> generatePriorityQueue(Map<Integer, Integer> frequencyTable) {
-
-//        Set<Map.Entry<Integer, Integer>> entrySet = frequencyTable.entrySet();
-//        PriorityQueue<HuffmanNode> priorityQueue = new PriorityQueue<>();
-//        for (Map.Entry<Integer, Integer> entry : entrySet) {
-//            HuffmanNode node = new HuffmanNode(entry.getKey(), entry.getValue());
-//            priorityQueue.add(node);
-//        }
-//        return priorityQueue;
-
-        return frequencyTable.entrySet().stream()
-                .map(entry -> new HuffmanNode(entry.getKey(), entry.getValue()))
-                .sorted()
-                .collect(Collectors.toCollection(PriorityQueue::new));
-//        List<HuffmanNode> nodes = new ArrayList<>();
-//
-//        for (Map.Entry<Integer, Integer> entry : frequencyTable.entrySet()) {
-//            nodes.add(new HuffmanNode(entry.getKey(), entry.getValue()));
-//        }
-//        Collections.sort(nodes);
-//
-//        return nodes;
-    }
-
-    private Map<Integer, Integer> generateFreqTable(int[][][] pixels) {
-        Map<Integer, Integer> frequencyTable = new HashMap<>();
-
-        Arrays.stream(pixels)
-                .forEach(plane -> Arrays.stream(plane)
-                        .forEach(row -> Arrays.stream(row)
-                                .forEach(value -> frequencyTable.put(value, frequencyTable.getOrDefault(value, 0) +
-                                        1))
-                        ));
-//        for (int[][] plane : pixels) {
-//            for (int[] row : plane) {
-//                for (int value : row) {
-//                    frequencyTable.put(value, frequencyTable.getOrDefault(value, 0) + 1);
-//                }
-//            }
-//        }
-
-        return frequencyTable;
-    }
-
-    private void generateHuffmanCodes(HuffmanNode node, String code, Map<Integer, String> huffmanCodes) {
-        if (node.isLeaf()) {
-            huffmanCodes.put(node.value, code);
-        } else {
-            generateHuffmanCodes(node.left, code + "0", huffmanCodes);
-            generateHuffmanCodes(node.right, code + "1", huffmanCodes);
-        }
-    }
-
-    private int decodeHuffmanCode(String code, Map<Integer, String> huffmanCodes) {
-        for (Map.Entry<Integer, String> entry : huffmanCodes.entrySet()) {
-            String huffmanCode = entry.getValue();
-            if (code.startsWith(huffmanCode)) {
-                // If the input code starts with a known Huffman code, return the corresponding value
-                return entry.getKey();
-            }
-        }
-        throw new IllegalArgumentException("Invalid Huffman code");
-    }
-
-    private void writeEncodedData(int[][][] pixels, String outputFileName, Map<Integer, String> huffmanCodes) throws IOException {
-
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFileName))) {
-            // Write Huffman codes and dimensions of to the output file);
-            oos.writeObject(huffmanCodes);
-            oos.writeInt(pixels.length);
-            oos.writeInt(pixels[0].length);
-            oos.writeInt(pixels[0][0].length);
-
-            Arrays.stream(pixels)
-                    .forEach(plane -> Arrays.stream(plane)
-                            .forEach(row -> Arrays.stream(row)
-                                    .forEach(value -> {
-                                        String huffmanCode = huffmanCodes.get(value);
-                                        BitSet huffmanCodeBit = new BitSet(huffmanCode.length());
-
-                                        for (int i = 0; i < huffmanCode.length(); i++) {
-                                            if (huffmanCode.charAt(i) == '1') {
-                                                huffmanCodeBit.set(i);
-                                            }
-                                        }
-
-                                        // Convert BitSet to byte array
-                                        byte[] byteArray = huffmanCodeBit.toByteArray();
-
-                                        // Write the byte array to the output stream
-                                        try {
-                                            oos.writeObject(byteArray);
-                                        } catch (IOException e) {
-                                            System.out.println(e.getMessage());
-                                        }
-                                    })
-                            )
-                    );
-        }
-    }
-    public void traversePreOrder(StringBuilder sb, HuffmanNode node) {
-        if (node != null) {
-            sb.append(node.getValue());
-            sb.append("\n");
-            traversePreOrder(sb, node.getLeft());
-            traversePreOrder(sb, node.getRight());
-        }
-    }
-
-    private static class HuffmanNode implements Comparable<HuffmanNode> {
-        int value;
-        int frequency;
-        HuffmanNode left;
-        HuffmanNode right;
-
-        public HuffmanNode(int value, int frequency) {
-            this.value = value;
-            this.frequency = frequency;
-        }
-
-        public HuffmanNode(HuffmanNode left, HuffmanNode right) {
-            this.left = left;
-            this.right = right;
-            this.frequency = left.frequency + right.frequency;
-        }
-
-        public boolean isLeaf() {
-            return left == null && right == null;
-        }
-
-        @Override
-        public int compareTo(HuffmanNode other) {
-            return Integer.compare(frequency, other.frequency);
-        }
-
-        public int getValue(){
-            return value;
-        }
-
-        public HuffmanNode getLeft(){
-            return left;
-        }
-
-        public HuffmanNode getRight(){
-            return right;
-        }
-    }
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.stream.IntStream;
+
+// File layout:
+//   magic "HUF", version byte
+//   int width, int height
+//   256 bytes: canonical code length of each channel value (0 = value does not occur)
+//   packed codes of every channel value, rows top to bottom, R G B per pixel
+public class UtilityExperimentUsingOnlyHuffman {
+
+    private static final byte[] MAGIC = { 'H', 'U', 'F' };
+    private static final int VERSION = 1;
+    private static final int SYMBOLS = 256;
+    private static final int HEADER_BYTES = 4 + 2 * 4 + SYMBOLS;
+
+    // Images with at least this many pixels build their histogram in parallel
+    private static final int PARALLEL_THRESHOLD = 1 << 20;
+    private static final int CHUNK_ROWS = 64;
+
+    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
+        Compress(PixelBuffer.fromArray(pixels), outputFileName);
+    }
+
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        // Count every channel value
+        int[] histogram = generateHistogram(pixels);
+
+        // Code lengths straight from the counts; the decoder rebuilds the same canonical code from them
+        CanonicalHuffman code = new CanonicalHuffman(CanonicalHuffman.codeLengths(histogram));
+
+        // Write the Huffman-encoded data
+        writeEncodedData(pixels, outputFileName, code);
+    }
+
+
+    public int[][][] Decompress(String inputFileName) throws IOException, ClassNotFoundException {
+        return DecompressToBuffer(inputFileName).toArray();
+    }
+
+    public PixelBuffer DecompressToBuffer(String inputFileName) throws IOException, ClassNotFoundException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(inputFileName)));
+        if (buffer.remaining() < HEADER_BYTES || buffer.get(0) != MAGIC[0] || buffer.get(1) != MAGIC[1]
+                || buffer.get(2) != MAGIC[2]) {
+            throw new IOException("Not a Huffman image file");
+        }
+        if (buffer.get(3) != VERSION) {
+            throw new IOException("Unsupported Huffman image version " + buffer.get(3));
+        }
+
+        // Read dimensions of the image and the code lengths
+        int width = buffer.getInt(4);
+        int height = buffer.getInt(8);
+        // Every code is at least one bit, so the data bounds the pixel count before allocating
+        long dataBits = 8L * (buffer.limit() - HEADER_BYTES);
+        if (width <= 0 || height <= 0 || 3L * width * height > dataBits) {
+            throw new IOException("Corrupt or truncated Huffman image file");
+        }
+        int[] lengths = new int[SYMBOLS];
+        for (int i = 0; i < SYMBOLS; i++) {
+            lengths[i] = buffer.get(12 + i) & 0xFF;
+        }
+
+        // Read the Huffman-encoded data and decode it through the lookup table. BitReader
+        // gives zero bits past the end, so each row checks that it stayed inside the data.
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        int[] data = pixels.getData();
+        BitReader in = new BitReader(buffer, HEADER_BYTES);
+        try {
+            CanonicalHuffman code = new CanonicalHuffman(lengths);
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int end = i + width; i < end; i++) {
+                    int red = code.decode(in);
+                    int green = code.decode(in);
+                    int blue = code.decode(in);
+                    data[i] = (red << 16) | (green << 8) | blue;
+                }
+                if (in.getBitPosition() > dataBits) {
+                    throw new IOException("Truncated Huffman image file");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt Huffman image file", e);
+        }
+
+        return pixels;
+    }
+
+
+    // int[256] histogram of the R, G and B values. Large images are counted in row chunks
+    // in parallel, each into its own histogram, and the chunks are summed.
+    private int[] generateHistogram(PixelBuffer pixels) {
+        int height = pixels.getHeight();
+        if ((long) pixels.getWidth() * height < PARALLEL_THRESHOLD) {
+            int[] histogram = new int[SYMBOLS];
+            countRows(pixels, 0, height, histogram);
+            return histogram;
+        }
+
+        int chunks = (height + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        return IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> {
+                    int[] histogram = new int[SYMBOLS];
+                    int rowStart = chunk * CHUNK_ROWS;
+                    countRows(pixels, rowStart, Math.min(rowStart + CHUNK_ROWS, height), histogram);
+                    return histogram;
+                })
+                .reduce((a, b) -> {
+                    for (int i = 0; i < SYMBOLS; i++) {
+                        a[i] += b[i];
+                    }
+                    return a;
+                })
+                .get();
+    }
+
+    private static void countRows(PixelBuffer pixels, int rowStart, int rowEnd, int[] histogram) {
+        int[] data = pixels.getData();
+        int width = pixels.getWidth();
+        for (int y = rowStart; y < rowEnd; y++) {
+            int row = y * pixels.getStride();
+            for (int x = 0; x < width; x++) {
+                int rgb = data[row + x];
+                histogram[(rgb >> 16) & 0xFF]++;
+                histogram[(rgb >> 8) & 0xFF]++;
+                histogram[rgb & 0xFF]++;
+            }
+        }
+    }
+
+    private void writeEncodedData(PixelBuffer pixels, String outputFileName, CanonicalHuffman code) throws IOException {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        BitWriter bits = new BitWriter(width * height * 3);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = pixels.getRGB(x, y);
+                code.encode((rgb >> 16) & 0xFF, bits);
+                code.encode((rgb >> 8) & 0xFF, bits);
+                code.encode(rgb & 0xFF, bits);
+            }
+        }
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFileName)))) {
+            // Write the header: dimensions and one code length per channel value
+            dos.write(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeInt(width);
+            dos.writeInt(height);
+            for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+                dos.writeByte(code.getLength(symbol));
+            }
+            dos.write(bits.toByteArray());
+        }
+    }
 }
\ No newline at end of file
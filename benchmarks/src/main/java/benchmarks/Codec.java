@@ -0,0 +1,252 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+
+// The codec classes live in the default package, which cannot be imported from a named
+// package (and JMH refuses benchmarks in the default package). This resolves the entry
+// points once as method handles; the calls they wrap take milliseconds, so the
+// indirection does not show up in the measurements.
+final class Codec {
+
+    private static final Class<?> PIXEL_BUFFER = load("PixelBuffer");
+    private static final Class<?> SUMMED_AREA_TABLE = load("SummedAreaTable");
+    private static final Class<?> QUAD_TREE = load("QuadTree");
+
+    private static final MethodHandle TO_PIXEL_BUFFER =
+            method("ImagetoPixelConverter", "toPixelBuffer", BufferedImage.class);
+    private static final MethodHandle TO_BUFFERED_IMAGE =
+            method("PixeltoImageConverter", "toBufferedImage", PIXEL_BUFFER, int.class);
+    private static final MethodHandle WRAP_PIXELS = constructor(PIXEL_BUFFER, int.class, int.class, int[].class);
+    private static final MethodHandle TO_ARRAY = method("PixelBuffer", "toArray");
+    private static final MethodHandle WIDTH = method("PixelBuffer", "getWidth");
+    private static final MethodHandle HEIGHT = method("PixelBuffer", "getHeight");
+    private static final MethodHandle ROOT_SIZE = method("QuadTree", "rootSize", int.class, int.class);
+
+    private static final MethodHandle NEW_TABLE = constructor(SUMMED_AREA_TABLE, PIXEL_BUFFER);
+    private static final MethodHandle NEW_TREE_DIRECT =
+            constructor(QUAD_TREE, int[][][].class, int.class, int.class, int.class);
+    private static final MethodHandle NEW_TREE_FROM_TABLE =
+            constructor(QUAD_TREE, SUMMED_AREA_TABLE, int.class, int.class, int.class);
+    private static final MethodHandle BUILD_FLAT =
+            method("FlatQuadTree", "build", SUMMED_AREA_TABLE, int.class);
+    private static final MethodHandle NEW_PARALLEL_BUILDER =
+            constructor(load("ParallelQuadTreeBuilder"), int.class, int.class);
+    private static final MethodHandle BUILD_PARALLEL =
+            method("ParallelQuadTreeBuilder", "build", SUMMED_AREA_TABLE, int.class);
+
+    private static final MethodHandle NEW_UTILITY = constructor(load("Utility"));
+    private static final MethodHandle SET_ENTROPY_CODING =
+            method("Utility", "setUseEntropyCoding", boolean.class);
+    private static final MethodHandle SET_DECODE_PARALLELISM =
+            method("Utility", "setDecodeParallelism", int.class);
+    private static final MethodHandle COMPRESS = method("Utility", "Compress", PIXEL_BUFFER, String.class);
+    private static final MethodHandle DECOMPRESS = method("Utility", "DecompressToBuffer", String.class);
+    private static final MethodHandle NEW_HUFFMAN = constructor(load("UtilityExperimentUsingOnlyHuffman"));
+    private static final MethodHandle HUFFMAN_COMPRESS =
+            method("UtilityExperimentUsingOnlyHuffman", "Compress", PIXEL_BUFFER, String.class);
+    private static final MethodHandle HUFFMAN_DECOMPRESS =
+            method("UtilityExperimentUsingOnlyHuffman", "DecompressToBuffer", String.class);
+
+    private static final MethodHandle KERNELS = method("PixelKernels", "get");
+    private static final MethodHandle SCALAR_KERNELS = method("PixelKernels", "scalar");
+    private static final MethodHandle KERNEL_NAME = method("PixelKernels", "getName");
+    private static final MethodHandle DATA = method("PixelBuffer", "getData");
+    private static final MethodHandle SUMS =
+            method("PixelKernels", "sums", int[].class, int.class, int.class, long[].class);
+    private static final MethodHandle DIFFERENCES = method("PixelKernels", "differences", int[].class, int.class,
+            int[].class, int.class, int.class, long[].class);
+
+    private static final MethodHandle MAE =
+            method("MAECalculator", "calculateMAE", BufferedImage.class, BufferedImage.class);
+    private static final MethodHandle MSE =
+            method("MSECalculator", "calculateMSE", BufferedImage.class, BufferedImage.class);
+    private static final MethodHandle PSNR =
+            method("PSNRCalculator", "calculatePSNR", BufferedImage.class, BufferedImage.class);
+    private static final MethodHandle QUALITY =
+            method("QualityMetrics", "compute", PIXEL_BUFFER, PIXEL_BUFFER, boolean.class);
+
+    private Codec() {
+    }
+
+    static Object toPixelBuffer(BufferedImage image) throws Throwable {
+        return TO_PIXEL_BUFFER.invoke(image);
+    }
+
+    // The converters' original per-pixel getRGB loop, as the baseline for the raster path
+    static Object toPixelBufferPerPixel(BufferedImage image) throws Throwable {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] data = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = image.getRGB(x, y) & 0xFFFFFF;
+            }
+        }
+        return WRAP_PIXELS.invoke(width, height, data);
+    }
+
+    static BufferedImage toBufferedImage(Object pixels) throws Throwable {
+        return (BufferedImage) TO_BUFFERED_IMAGE.invoke(pixels, BufferedImage.TYPE_INT_RGB);
+    }
+
+    // The original per-pixel setRGB loop
+    static BufferedImage toBufferedImagePerPixel(Object pixels) throws Throwable {
+        int width = (int) WIDTH.invoke(pixels);
+        int height = (int) HEIGHT.invoke(pixels);
+        int[] data = (int[]) DATA.invoke(pixels);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, data[y * width + x]);
+            }
+        }
+        return image;
+    }
+
+    static int[][][] toArray(Object pixels) throws Throwable {
+        return (int[][][]) TO_ARRAY.invoke(pixels);
+    }
+
+    // Root size Utility.Compress uses for the image
+    static int rootSize(Object pixels) throws Throwable {
+        return (int) ROOT_SIZE.invoke((int) WIDTH.invoke(pixels), (int) HEIGHT.invoke(pixels));
+    }
+
+    static Object summedAreaTable(Object pixels) throws Throwable {
+        return NEW_TABLE.invoke(pixels);
+    }
+
+    static Object buildTreeDirect(int[][][] pixels, int size) throws Throwable {
+        return NEW_TREE_DIRECT.invoke(pixels, 0, 0, size);
+    }
+
+    static Object buildTree(Object table, int size) throws Throwable {
+        return NEW_TREE_FROM_TABLE.invoke(table, 0, 0, size);
+    }
+
+    static Object buildFlatTree(Object table, int size) throws Throwable {
+        return BUILD_FLAT.invoke(table, size);
+    }
+
+    static Object parallelBuilder(int parallelism, int cutoff) throws Throwable {
+        return NEW_PARALLEL_BUILDER.invoke(parallelism, cutoff);
+    }
+
+    static Object buildTreeParallel(Object builder, Object table, int size) throws Throwable {
+        return BUILD_PARALLEL.invoke(builder, table, size);
+    }
+
+    static Object utility() throws Throwable {
+        return NEW_UTILITY.invoke();
+    }
+
+    // Utility writing HybridQuadTreeFormat
+    static Object hybridUtility() throws Throwable {
+        Object utility = NEW_UTILITY.invoke();
+        SET_ENTROPY_CODING.invoke(utility, true);
+        return utility;
+    }
+
+    // Utility decoding compact and tiled files on a pool of this many threads
+    static Object parallelDecodeUtility(int parallelism) throws Throwable {
+        Object utility = NEW_UTILITY.invoke();
+        SET_DECODE_PARALLELISM.invoke(utility, parallelism);
+        return utility;
+    }
+
+    static void compress(Object utility, Object pixels, String file) throws Throwable {
+        COMPRESS.invoke(utility, pixels, file);
+    }
+
+    static Object decompress(Object utility, String file) throws Throwable {
+        return DECOMPRESS.invoke(utility, file);
+    }
+
+    static Object huffman() throws Throwable {
+        return NEW_HUFFMAN.invoke();
+    }
+
+    static void huffmanCompress(Object huffman, Object pixels, String file) throws Throwable {
+        HUFFMAN_COMPRESS.invoke(huffman, pixels, file);
+    }
+
+    static Object huffmanDecompress(Object huffman, String file) throws Throwable {
+        return HUFFMAN_DECOMPRESS.invoke(huffman, file);
+    }
+
+    static double mae(BufferedImage a, BufferedImage b) throws Throwable {
+        return (double) MAE.invoke(a, b);
+    }
+
+    static double mse(BufferedImage a, BufferedImage b) throws Throwable {
+        return (double) MSE.invoke(a, b);
+    }
+
+    static double psnr(BufferedImage a, BufferedImage b) throws Throwable {
+        return (double) PSNR.invoke(a, b);
+    }
+
+    static Object quality(Object a, Object b, boolean parallel) throws Throwable {
+        return QUALITY.invoke(a, b, parallel);
+    }
+
+    // The scalar kernels, or whichever PixelKernels.get() picked
+    static Object kernels(boolean scalar) throws Throwable {
+        return scalar ? SCALAR_KERNELS.invoke() : KERNELS.invoke();
+    }
+
+    static String kernelName(Object kernels) throws Throwable {
+        return (String) KERNEL_NAME.invoke(kernels);
+    }
+
+    // One kernel call over the whole pixel array
+    static long[] sums(Object kernels, Object pixels, long[] out) throws Throwable {
+        int[] data = (int[]) DATA.invoke(pixels);
+        SUMS.invoke(kernels, data, 0, data.length, out);
+        return out;
+    }
+
+    static long[] differences(Object kernels, Object a, Object b, long[] out) throws Throwable {
+        int[] first = (int[]) DATA.invoke(a);
+        int[] second = (int[]) DATA.invoke(b);
+        DIFFERENCES.invoke(kernels, first, 0, second, 0, Math.min(first.length, second.length), out);
+        return out;
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(String className, String name, Class<?>... parameters) {
+        try {
+            Method method = load(className).getDeclaredMethod(name, parameters);
+            return MethodHandles.lookup().unreflect(accessible(method));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor(parameters);
+            return MethodHandles.lookup().unreflectConstructor(accessible(constructor));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Package-private classes such as QuadTree need this
+    private static <T extends Executable> T accessible(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// End-to-end Compress and Decompress of Utility (compact and hybrid format) and
+// UtilityExperimentUsingOnlyHuffman, including the file I/O they do
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private Object utility;
+    private Object parallelDecoder;
+    private Object hybrid;
+    private Object huffman;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        utility = Codec.utility();
+        parallelDecoder = Codec.parallelDecodeUtility(Runtime.getRuntime().availableProcessors());
+        hybrid = Codec.hybridUtility();
+        huffman = Codec.huffman();
+    }
+
+    @Benchmark
+    public void quadTreeCompress(ImageState state) throws Throwable {
+        Codec.compress(utility, state.pixels, state.outputFile("compress.bin"));
+    }
+
+    @Benchmark
+    public Object quadTreeDecompress(ImageState state) throws Throwable {
+        return Codec.decompress(utility, state.compressedFile);
+    }
+
+    @Benchmark
+    public Object quadTreeDecompressParallel(ImageState state) throws Throwable {
+        return Codec.decompress(parallelDecoder, state.compressedFile);
+    }
+
+    @Benchmark
+    public void hybridCompress(ImageState state) throws Throwable {
+        Codec.compress(hybrid, state.pixels, state.outputFile("hybrid-out.bin"));
+    }
+
+    @Benchmark
+    public Object hybridDecompress(ImageState state) throws Throwable {
+        return Codec.decompress(hybrid, state.hybridFile);
+    }
+
+    @Benchmark
+    public void huffmanCompress(ImageState state) throws Throwable {
+        Codec.huffmanCompress(huffman, state.pixels, state.outputFile("huffman-out.bin"));
+    }
+
+    @Benchmark
+    public Object huffmanDecompress(ImageState state) throws Throwable {
+        return Codec.huffmanDecompress(huffman, state.huffmanFile);
+    }
+}
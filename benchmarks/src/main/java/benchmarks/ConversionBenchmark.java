@@ -0,0 +1,34 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// BufferedImage <-> PixelBuffer, per-pixel getRGB/setRGB against the raster fast paths
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Benchmark
+    public Object loadPerPixel(ImageState state) throws Throwable {
+        return Codec.toPixelBufferPerPixel(state.bufferedImage);
+    }
+
+    @Benchmark
+    public Object loadRaster(ImageState state) throws Throwable {
+        return Codec.toPixelBuffer(state.bufferedImage);
+    }
+
+    @Benchmark
+    public BufferedImage savePerPixel(ImageState state) throws Throwable {
+        return Codec.toBufferedImagePerPixel(state.decompressed);
+    }
+
+    @Benchmark
+    public BufferedImage saveRaster(ImageState state) throws Throwable {
+        return Codec.toBufferedImage(state.decompressed);
+    }
+}
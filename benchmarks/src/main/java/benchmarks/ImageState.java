@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.openjdk.jmh.annotations.*;
+
+// One input image in every form the benchmarks need, prepared outside the measurement
+@State(Scope.Benchmark)
+public class ImageState {
+
+    @Param({ "10188041.png", "10287332.png", "10350842.png", "10404007.png", "10863862.png",
+            "11079715.png", "11382381.png", "11551286.png", "11610969.png", "1254659.png",
+            "synthetic-256", "synthetic-512", "synthetic-1024", "synthetic-2048" })
+    public String image;
+
+    BufferedImage bufferedImage;
+    Object pixels; // PixelBuffer
+    int[][][] pixelArray;
+    int rootSize;
+    Object summedAreaTable;
+
+    // Compressed and decompressed forms, for decode and metrics benchmarks
+    File workDirectory;
+    String compressedFile;
+    String hybridFile;
+    String huffmanFile;
+    Object decompressed; // PixelBuffer
+    BufferedImage decompressedImage;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        bufferedImage = Images.load(image);
+        pixels = Codec.toPixelBuffer(bufferedImage);
+        pixelArray = Codec.toArray(pixels);
+        rootSize = Codec.rootSize(pixels);
+        summedAreaTable = Codec.summedAreaTable(pixels);
+
+        workDirectory = Files.createTempDirectory("codec-bench").toFile();
+        compressedFile = new File(workDirectory, "image.bin").getPath();
+        Codec.compress(Codec.utility(), pixels, compressedFile);
+        hybridFile = new File(workDirectory, "hybrid.bin").getPath();
+        Codec.compress(Codec.hybridUtility(), pixels, hybridFile);
+        huffmanFile = new File(workDirectory, "huffman.bin").getPath();
+        Codec.huffmanCompress(Codec.huffman(), pixels, huffmanFile);
+        decompressed = Codec.decompress(Codec.utility(), compressedFile);
+        decompressedImage = Codec.toBufferedImage(decompressed);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        File[] files = workDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(workDirectory.toPath());
+    }
+
+    String outputFile(String name) {
+        return new File(workDirectory, name).getPath();
+    }
+}
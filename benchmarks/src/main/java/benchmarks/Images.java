@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+// Benchmark inputs: a PNG from Original/ by file name, or "synthetic-N" for a generated
+// N x N image. The Original/ directory is looked up in ../Original and Original, or set
+// with -Dcodec.images=path.
+final class Images {
+
+    private static final String SYNTHETIC = "synthetic-";
+
+    private Images() {
+    }
+
+    static BufferedImage load(String name) throws IOException {
+        if (name.startsWith(SYNTHETIC)) {
+            int size = Integer.parseInt(name.substring(SYNTHETIC.length()));
+            return synthetic(size, size);
+        }
+        File file = new File(directory(), name);
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Cannot read " + file);
+        }
+        return image;
+    }
+
+    private static File directory() {
+        String configured = System.getProperty("codec.images");
+        if (configured != null) {
+            return new File(configured);
+        }
+        File parent = new File("../Original");
+        return parent.isDirectory() ? parent : new File("Original");
+    }
+
+    // Smooth gradients with sharp-edged rectangles and a little noise, so the QuadTree
+    // gets both large uniform leaves and deep detail. Seeded, so runs are comparable.
+    static BufferedImage synthetic(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(width * 31L + height);
+        int[][] rectangles = new int[16][];
+        for (int i = 0; i < rectangles.length; i++) {
+            int x = random.nextInt(width), y = random.nextInt(height);
+            rectangles[i] = new int[] { x, y, x + random.nextInt(width / 4 + 1), y + random.nextInt(height / 4 + 1),
+                    random.nextInt(0x1000000) };
+        }
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = 255 * x / width;
+                int green = 255 * y / height;
+                int blue = 128;
+                for (int[] r : rectangles) {
+                    if (x >= r[0] && x < r[2] && y >= r[1] && y < r[3]) {
+                        red = (r[4] >> 16) & 0xFF;
+                        green = (r[4] >> 8) & 0xFF;
+                        blue = r[4] & 0xFF;
+                    }
+                }
+                int noise = random.nextInt(9) - 4;
+                red = Math.max(0, Math.min(255, red + noise));
+                green = Math.max(0, Math.min(255, green + noise));
+                blue = Math.max(0, Math.min(255, blue + noise));
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Scalar against Vector API pixel kernels on the same rows. Each kernels value runs in its
+// own fork with the incubator module resolved, so the JIT only ever sees one
+// implementation at the call site.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class KernelBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class KernelState {
+        @Param({ "scalar", "vector" })
+        public String kernels;
+
+        Object instance; // PixelKernels
+        long[] out = new long[9];
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            instance = Codec.kernels(kernels.equals("scalar"));
+            String name = Codec.kernelName(instance);
+            if (kernels.equals("vector") && name.equals("scalar")) {
+                throw new IllegalStateException("Vector API kernels not available");
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] sums(ImageState image, KernelState state) throws Throwable {
+        return Codec.sums(state.instance, image.pixels, state.out);
+    }
+
+    @Benchmark
+    public long[] differences(ImageState image, KernelState state) throws Throwable {
+        return Codec.differences(state.instance, image.pixels, image.decompressed, state.out);
+    }
+
+    // The whole metric pass; this fork resolves the module, so QualityMetrics gets the
+    // vector kernels (MetricsBenchmark.qualityMetrics is the scalar run)
+    @Benchmark
+    public Object qualityMetrics(ImageState image) throws Throwable {
+        return Codec.quality(image.pixels, image.decompressed, false);
+    }
+}
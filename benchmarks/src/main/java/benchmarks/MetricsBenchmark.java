@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The three calculators separately and together, against the single-pass QualityMetrics
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Benchmark
+    public double mae(ImageState state) throws Throwable {
+        return Codec.mae(state.bufferedImage, state.decompressedImage);
+    }
+
+    @Benchmark
+    public double mse(ImageState state) throws Throwable {
+        return Codec.mse(state.bufferedImage, state.decompressedImage);
+    }
+
+    @Benchmark
+    public double psnr(ImageState state) throws Throwable {
+        return Codec.psnr(state.bufferedImage, state.decompressedImage);
+    }
+
+    // What App used to pay per image
+    @Benchmark
+    public void allThreeCalculators(ImageState state, Blackhole blackhole) throws Throwable {
+        blackhole.consume(Codec.mae(state.bufferedImage, state.decompressedImage));
+        blackhole.consume(Codec.mse(state.bufferedImage, state.decompressedImage));
+        blackhole.consume(Codec.psnr(state.bufferedImage, state.decompressedImage));
+    }
+
+    @Benchmark
+    public Object qualityMetrics(ImageState state) throws Throwable {
+        return Codec.quality(state.pixels, state.decompressed, false);
+    }
+
+    @Benchmark
+    public Object qualityMetricsParallel(ImageState state) throws Throwable {
+        return Codec.quality(state.pixels, state.decompressed, true);
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// QuadTree construction: the original per-node rescans against the summed-area-table,
+// flat-array and fork-join builders
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuadTreeBuildBenchmark {
+
+    private Object parallelBuilder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        parallelBuilder = Codec.parallelBuilder(Runtime.getRuntime().availableProcessors(), 64);
+    }
+
+    @Benchmark
+    public Object directScan(ImageState state) throws Throwable {
+        return Codec.buildTreeDirect(state.pixelArray, state.rootSize);
+    }
+
+    // Includes building the integral images
+    @Benchmark
+    public Object summedAreaTable(ImageState state) throws Throwable {
+        return Codec.buildTree(Codec.summedAreaTable(state.pixels), state.rootSize);
+    }
+
+    // Tree only, from integral images built in setup
+    @Benchmark
+    public Object fromSummedAreaTable(ImageState state) throws Throwable {
+        return Codec.buildTree(state.summedAreaTable, state.rootSize);
+    }
+
+    @Benchmark
+    public Object flatTree(ImageState state) throws Throwable {
+        return Codec.buildFlatTree(state.summedAreaTable, state.rootSize);
+    }
+
+    @Benchmark
+    public Object parallel(ImageState state) throws Throwable {
+        return Codec.buildTreeParallel(parallelBuilder, state.summedAreaTable, state.rootSize);
+    }
+}
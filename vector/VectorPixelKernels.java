@@ -0,0 +1,99 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// PixelKernels on the JDK Vector API. Needs the incubator module at compile and run time:
+//
+//   javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorPixelKernels.java
+//   java --add-modules jdk.incubator.vector App
+//
+// Each lane unpacks its pixel's channels with shifts and masks and accumulates in int
+// lanes. CHUNK bounds the pixels per lane between reductions so a lane's sum of squares
+// (at most 255^2 per pixel) cannot overflow. The tail shorter than a vector runs through
+// the scalar loop.
+public class VectorPixelKernels extends PixelKernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    // Pixels per reduction: 255^2 * CHUNK / lanes must stay below 2^31 for any lane count
+    private static final int CHUNK = 16384;
+
+    public VectorPixelKernels() {
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+
+    @Override
+    public void sums(int[] data, int from, int length, long[] out) {
+        int lanes = SPECIES.length();
+        int vectorEnd = from + (length - length % lanes);
+        for (int chunk = from; chunk < vectorEnd; chunk += CHUNK) {
+            int chunkEnd = Math.min(chunk + CHUNK, vectorEnd);
+            IntVector sumR = IntVector.zero(SPECIES), sumG = IntVector.zero(SPECIES), sumB = IntVector.zero(SPECIES);
+            IntVector squareR = IntVector.zero(SPECIES), squareG = IntVector.zero(SPECIES),
+                    squareB = IntVector.zero(SPECIES);
+            for (int i = chunk; i < chunkEnd; i += lanes) {
+                IntVector rgb = IntVector.fromArray(SPECIES, data, i);
+                IntVector red = rgb.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+                IntVector green = rgb.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+                IntVector blue = rgb.and(0xFF);
+                sumR = sumR.add(red);
+                sumG = sumG.add(green);
+                sumB = sumB.add(blue);
+                squareR = squareR.add(red.mul(red));
+                squareG = squareG.add(green.mul(green));
+                squareB = squareB.add(blue.mul(blue));
+            }
+            out[SUM] += sumR.reduceLanesToLong(VectorOperators.ADD);
+            out[SUM + 1] += sumG.reduceLanesToLong(VectorOperators.ADD);
+            out[SUM + 2] += sumB.reduceLanesToLong(VectorOperators.ADD);
+            out[SQUARES] += squareR.reduceLanesToLong(VectorOperators.ADD);
+            out[SQUARES + 1] += squareG.reduceLanesToLong(VectorOperators.ADD);
+            out[SQUARES + 2] += squareB.reduceLanesToLong(VectorOperators.ADD);
+        }
+        super.sums(data, vectorEnd, from + length - vectorEnd, out);
+    }
+
+    @Override
+    public void differences(int[] a, int aFrom, int[] b, int bFrom, int length, long[] out) {
+        int lanes = SPECIES.length();
+        int vectorLength = length - length % lanes;
+        for (int chunk = 0; chunk < vectorLength; chunk += CHUNK) {
+            int chunkEnd = Math.min(chunk + CHUNK, vectorLength);
+            IntVector absR = IntVector.zero(SPECIES), absG = IntVector.zero(SPECIES), absB = IntVector.zero(SPECIES);
+            IntVector sqR = IntVector.zero(SPECIES), sqG = IntVector.zero(SPECIES), sqB = IntVector.zero(SPECIES);
+            IntVector maxR = IntVector.zero(SPECIES), maxG = IntVector.zero(SPECIES), maxB = IntVector.zero(SPECIES);
+            for (int k = chunk; k < chunkEnd; k += lanes) {
+                IntVector p = IntVector.fromArray(SPECIES, a, aFrom + k);
+                IntVector q = IntVector.fromArray(SPECIES, b, bFrom + k);
+                IntVector dr = p.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                        .sub(q.lanewise(VectorOperators.LSHR, 16).and(0xFF)).abs();
+                IntVector dg = p.lanewise(VectorOperators.LSHR, 8).and(0xFF)
+                        .sub(q.lanewise(VectorOperators.LSHR, 8).and(0xFF)).abs();
+                IntVector db = p.and(0xFF).sub(q.and(0xFF)).abs();
+                absR = absR.add(dr);
+                absG = absG.add(dg);
+                absB = absB.add(db);
+                sqR = sqR.add(dr.mul(dr));
+                sqG = sqG.add(dg.mul(dg));
+                sqB = sqB.add(db.mul(db));
+                maxR = maxR.max(dr);
+                maxG = maxG.max(dg);
+                maxB = maxB.max(db);
+            }
+            out[SUM] += absR.reduceLanesToLong(VectorOperators.ADD);
+            out[SUM + 1] += absG.reduceLanesToLong(VectorOperators.ADD);
+            out[SUM + 2] += absB.reduceLanesToLong(VectorOperators.ADD);
+            out[SQUARES] += sqR.reduceLanesToLong(VectorOperators.ADD);
+            out[SQUARES + 1] += sqG.reduceLanesToLong(VectorOperators.ADD);
+            out[SQUARES + 2] += sqB.reduceLanesToLong(VectorOperators.ADD);
+            out[MAX] = Math.max(out[MAX], maxR.reduceLanes(VectorOperators.MAX));
+            out[MAX + 1] = Math.max(out[MAX + 1], maxG.reduceLanes(VectorOperators.MAX));
+            out[MAX + 2] = Math.max(out[MAX + 2], maxB.reduceLanes(VectorOperators.MAX));
+        }
+        super.differences(a, aFrom + vectorLength, b, bFrom + vectorLength, length - vectorLength, out);
+    }
+}